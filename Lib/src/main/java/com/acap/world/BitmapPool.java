@@ -0,0 +1,173 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲Bitmap的复用池
+ *      按照 宽度/高度/编码 对Bitmap进行分组,缓冲重建时优先复用池中的Bitmap,
+ *      避免频繁的创建与回收大对象引起GC
+ *
+ *      池中Bitmap占用的内存不会超过 {@link #getMaxSize()},超出时最早放入的Bitmap会被回收
+ *
+ * Created by ACap on 2021/4/8 15:40
+ * </pre>
+ */
+public final class BitmapPool {
+
+    private static BitmapPool sDefault;
+
+    /**
+     * 获得默认的复用池,所有 WorldBufferView 默认共享该对象
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sDefault;
+    }
+
+    private final HashMap<Long, ArrayList<Bitmap>> mGroups = new HashMap<>();
+    /**
+     * 按照放入的顺序记录池中的Bitmap,用于淘汰
+     */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<>();
+
+    private long mMaxSize;
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxSize 池中Bitmap占用内存的上限(字节)
+     */
+    public BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 获得一个已经被擦除的Bitmap,池中没有可复用对象时创建新的Bitmap
+     *
+     * @param width  宽度
+     * @param height 高度
+     * @param config 编码
+     * @return 可以直接绘制的Bitmap
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = poll(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * 获得一个已经被擦除的Bitmap
+     *
+     * @return 池中没有可复用对象时返回null
+     */
+    Bitmap poll(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayList<Bitmap> group = mGroups.get(key(width, height, config));
+            if (group != null && !group.isEmpty()) {
+                bitmap = group.remove(group.size() - 1);
+                mOrder.remove(bitmap);
+                mSize -= getBytes(bitmap);
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+
+        if (bitmap != null) bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * 将不再使用的Bitmap放入池中,无法复用的Bitmap会被直接回收
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        long bytes = getBytes(bitmap);
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayList<Bitmap> group = mGroups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                mGroups.put(key, group);
+            }
+            if (group.contains(bitmap)) return;
+            group.add(bitmap);
+            mOrder.addLast(bitmap);
+            mSize += bytes;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * 回收池中的Bitmap,直到占用的内存不超过指定的大小
+     *
+     * @param size 保留的内存大小(字节)
+     */
+    public synchronized void trimToSize(long size) {
+        while (mSize > size && !mOrder.isEmpty()) {
+            Bitmap bitmap = mOrder.removeFirst();
+            ArrayList<Bitmap> group = mGroups.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+            if (group != null) group.remove(bitmap);
+            mSize -= getBytes(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * 回收池中所有的Bitmap
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * 设置池中Bitmap占用内存的上限
+     *
+     * @param maxSize 上限(字节)
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    //池中Bitmap当前占用的内存
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    //复用成功的次数
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    //没有可复用对象的次数
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private static long getBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static Long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | (config == null ? 0xff : config.ordinal());
+    }
+}
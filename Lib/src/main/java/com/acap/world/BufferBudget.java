@@ -0,0 +1,152 @@
+package com.acap.world;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲的内存预算
+ *      记录每一个 WorldBufferView 的缓冲占用的内存,所有持有缓冲的View平分预算.
+ *      View在创建缓冲时根据分到的预算选择缓冲的编码、缩放以及常驻的区域大小,
+ *      持有缓冲的View的数量或者预算变化时,所有View会重新计算自己的配置
+ *
+ *      默认的预算为 {@link ActivityManager#getMemoryClass()} 的1/4,也可以通过 {@link #setMaxSize(long)} 指定
+ *
+ * Created by ACap on 2021/4/14 09:30
+ * </pre>
+ */
+public final class BufferBudget {
+
+    private static BufferBudget sDefault;
+
+    /**
+     * 获得默认的内存预算,所有 WorldBufferView 默认共享该对象
+     */
+    public static synchronized BufferBudget getDefault(Context context) {
+        if (sDefault == null) {
+            long maxSize = Runtime.getRuntime().maxMemory() / 4;
+            ActivityManager manager = context == null ? null : (ActivityManager) context.getApplicationContext().getSystemService(Context.ACTIVITY_SERVICE);
+            if (manager != null && manager.getMemoryClass() > 0) {
+                maxSize = manager.getMemoryClass() * 1024L * 1024L / 4;
+            }
+            sDefault = new BufferBudget(maxSize);
+        }
+        return sDefault;
+    }
+
+    /**
+     * 持有缓冲的View以及它们占用的内存
+     */
+    private final WeakHashMap<WorldBufferView, long[]> mViews = new WeakHashMap<>();
+
+    private long mMaxSize;
+    private long mSize;
+
+    /**
+     * @param maxSize 所有缓冲占用内存的上限(字节)
+     */
+    public BufferBudget(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 设置所有缓冲占用内存的上限,持有缓冲的View会在下一帧重新分配预算
+     *
+     * @param maxSize 上限(字节)
+     */
+    public void setMaxSize(long maxSize) {
+        synchronized (this) {
+            if (mMaxSize == maxSize) return;
+            mMaxSize = maxSize;
+        }
+        notifyChanged(null);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    //所有缓冲当前占用的内存
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    //一个View的缓冲当前占用的内存
+    public synchronized long getSize(WorldBufferView view) {
+        long[] size = mViews.get(view);
+        return size == null ? 0 : size[0];
+    }
+
+    //持有缓冲的View的数量
+    public synchronized int getViewCount() {
+        return mViews.size();
+    }
+
+    /**
+     * 获得一个View可以使用的预算,持有缓冲的View平分全部预算
+     */
+    public synchronized long getShare(WorldBufferView view) {
+        int count = mViews.size();
+        if (!mViews.containsKey(view)) count++;
+        return mMaxSize / count;
+    }
+
+    void register(WorldBufferView view) {
+        synchronized (this) {
+            if (mViews.containsKey(view)) return;
+            mViews.put(view, new long[1]);
+        }
+        notifyChanged(view);
+    }
+
+    void unregister(WorldBufferView view) {
+        synchronized (this) {
+            long[] size = mViews.remove(view);
+            if (size == null) return;
+            mSize -= size[0];
+        }
+        notifyChanged(view);
+    }
+
+    //每个View分到的预算发生了变化,通知其它持有缓冲的View在下一帧重新计算配置
+    private void notifyChanged(WorldBufferView except) {
+        final ArrayList<WorldBufferView> views;
+        synchronized (this) {
+            views = new ArrayList<>(mViews.keySet());
+        }
+        for (WorldBufferView view : views) {
+            if (view != except) view.postOnFrame(view::onBufferBudgetChanged);
+        }
+    }
+
+    synchronized void acquire(WorldBufferView view, Bitmap bitmap) {
+        long[] size = mViews.get(view);
+        if (size == null) return;
+        long bytes = getBytes(bitmap);
+        size[0] += bytes;
+        mSize += bytes;
+    }
+
+    synchronized void release(WorldBufferView view, Bitmap bitmap) {
+        long[] size = mViews.get(view);
+        if (size == null) return;
+        long bytes = Math.min(getBytes(bitmap), size[0]);
+        size[0] -= bytes;
+        mSize -= bytes;
+    }
+
+    static long getBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) return 4;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        return 2;
+    }
+}
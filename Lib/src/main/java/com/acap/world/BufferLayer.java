@@ -0,0 +1,169 @@
+package com.acap.world;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * <pre>
+ * Tip:
+ *      WorldBufferView 中独立的缓冲图层
+ *      每一个图层拥有自己的绘制回调和缓冲,只有发生变化的图层会被重新构建,
+ *      每一帧按照 z 的顺序将所有图层合成到画布上.
+ *      {@link WorldBufferView#onDrawWorldBuffer(Canvas, RenderToken)} 是 z 为0的默认图层,
+ *      z 小于0的图层绘制在它的下方,大于等于0的图层绘制在它的上方
+ *
+ *      view.addBufferLayer("curve", 1, (canvas, token) -> canvas.drawPath(path, token.getPaint()));
+ *      view.getBufferLayer("curve").invalidate();
+ *
+ * Created by ACap on 2021/4/16 10:05
+ * </pre>
+ */
+public final class BufferLayer {
+
+    private final WorldBufferView mView;
+    private final String mName;
+    private final OnDrawBufferLayer mCallback;
+    private int mZ;
+    /**
+     * 缓冲缩小的倍数
+     */
+    private int mScale = 1;
+    private boolean mIsVisible = true;
+
+    /**
+     * 图层的缓冲,由 WorldBufferView 在第一次绘制时创建
+     */
+    LodBuffer mBuffer;
+    /**
+     * 一帧之内失效的区域,在下一次绘制时合并处理
+     */
+    final Rect mDirtyRegion = new Rect();
+    /**
+     * 图层内容的版本,作为磁盘缓存Key的一部分.图层单独失效或者局部重绘时增加,
+     * 使磁盘中保存的旧内容不会再被读取
+     */
+    volatile int mCacheVersion;
+
+    BufferLayer(WorldBufferView view, String name, int z, OnDrawBufferLayer callback) {
+        mView = view;
+        mName = name;
+        mZ = z;
+        mCallback = callback;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getZ() {
+        return mZ;
+    }
+
+    /**
+     * 设置图层的绘制顺序,z 越大越靠上
+     */
+    public void setZ(int z) {
+        if (mZ == z) return;
+        mZ = z;
+        mView.onBufferLayerChanged(this, false);
+    }
+
+    public int getScale() {
+        return mScale;
+    }
+
+    /**
+     * 设置图层缓冲缩小的倍数,默认为1.缩小之后绘制时会被放大,适合背景等不需要清晰的内容.
+     * 只在 {@link WorldBufferView#BUFFER_MODE_WORLD} 模式下有效
+     *
+     * @param scale 缩小的倍数
+     */
+    public void setScale(int scale) {
+        if (scale < 1 || mScale == scale) return;
+        mScale = scale;
+        mView.onBufferLayerChanged(this, true);
+    }
+
+    public boolean isVisible() {
+        return mIsVisible;
+    }
+
+    /**
+     * 设置图层是否显示,隐藏的图层保留已经构建的缓冲
+     */
+    public void setVisible(boolean visible) {
+        if (mIsVisible == visible) return;
+        mIsVisible = visible;
+        mView.onBufferLayerChanged(this, false);
+    }
+
+    /**
+     * 图层的内容已经失效,重新构建整个图层
+     */
+    public void invalidate() {
+        mCacheVersion++;
+        reset();
+    }
+
+    /**
+     * 图层中的一块区域发生了变化,只重新绘制这块区域.
+     * 同一帧之内的多次调用会被合并,需要在主线程中调用
+     *
+     * @param worldRegion 发生变化的区域(世界坐标)
+     */
+    public void invalidate(RectF worldRegion) {
+        if (worldRegion == null) return;
+        invalidate((int) Math.floor(worldRegion.left), (int) Math.floor(worldRegion.top),
+                (int) Math.ceil(worldRegion.right), (int) Math.ceil(worldRegion.bottom));
+    }
+
+    public void invalidate(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) return;
+        //局部重绘只更新内存中的缓冲,磁盘中包含该区域的内容全部失效
+        mCacheVersion++;
+        mDirtyRegion.union(left, top, right, bottom);
+        mView.postInvalidateAtThread();
+    }
+
+    /**
+     * 随整个View一起重置,数据的变化已经体现在 {@link WorldBufferView#onCreateBufferCacheKey()} 中
+     */
+    void reset() {
+        if (mBuffer != null) mBuffer.reset();
+        mDirtyRegion.setEmpty();
+        mView.postInvalidateAtThread();
+    }
+
+    void draw(Canvas canvas, RenderToken token) {
+        mCallback.onDrawBufferLayer(canvas, token);
+    }
+
+    void trim() {
+        if (mBuffer != null) mBuffer.trim();
+    }
+
+    void restore() {
+        if (mBuffer != null) mBuffer.restore();
+    }
+
+    void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * 绘制图层的内容
+     */
+    public interface OnDrawBufferLayer {
+        /**
+         * 在缓冲构建线程中调用,约束与 {@link WorldBufferView#onDrawWorldBuffer(Canvas, RenderToken)} 相同
+         *
+         * @param canvas 已经移动并裁剪到需要绘制区域的画布
+         * @param token  这次构建的取消标记
+         */
+        void onDrawBufferLayer(Canvas canvas, RenderToken token);
+    }
+}
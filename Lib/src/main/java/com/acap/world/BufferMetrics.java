@@ -0,0 +1,240 @@
+package com.acap.world;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲构建的统计数据
+ *      记录一个 WorldBufferView 每一次构建(一个瓦片、一次局部重绘、一次滚动或者整个缓冲)的耗时与结果,
+ *      用于在真机上观察构建的性能:
+ *      - 构建耗时的次数分布(毫秒,按2的整数次幂分组),一次构建包含它调用的所有绘制方法
+ *      - 构建完成/被取消的数量.被取消包括绘制期间被取消、开始之前已经过期被丢弃以及完成之后结果被丢弃
+ *      - 从磁盘缓存中直接读取的区域数量,以及从复用池中获得的缓冲数量
+ *      - 缓冲占用的内存以及复用池的命中率
+ *
+ *      通过 {@link #setOnBufferBuildListener(OnBufferBuildListener)} 可以将每一次构建接入自己的统计系统,
+ *      Android 4.3 及以上每一次绘制方法的调用都会记录在 systrace 的 "WorldBuffer#draw" 区间中
+ *
+ *      BufferMetrics metrics = view.getBufferMetrics();
+ *      Log.d(TAG, "p50=" + metrics.getDurationPercentile(0.5f) + "ms cancelled=" + metrics.getCancelCount());
+ *
+ * Created by ACap on 2021/4/22 14:05
+ * </pre>
+ */
+public final class BufferMetrics {
+
+    /**
+     * 耗时分组的上限(毫秒),最后一组为超过 256ms 的绘制
+     */
+    private static final long[] BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+
+    private final WorldBufferView mView;
+    private final long[] mHistogram = new long[BUCKET_BOUNDS.length + 1];
+
+    private long mRenderCount;
+    private long mCancelCount;
+    private long mDiskReuseCount;
+    private long mPoolReuseCount;
+    private long mCreateCount;
+    private long mTotalDuration;
+    private long mMaxDuration;
+
+    private volatile OnBufferBuildListener mListener;
+
+    BufferMetrics(WorldBufferView view) {
+        mView = view;
+    }
+
+    /**
+     * 设置构建的监听
+     */
+    public void setOnBufferBuildListener(OnBufferBuildListener listener) {
+        mListener = listener;
+    }
+
+    //完成并被使用的构建数量
+    public synchronized long getRenderCount() {
+        return mRenderCount;
+    }
+
+    //被取消的构建数量,包括开始之前被丢弃以及完成之后结果被丢弃的构建
+    public synchronized long getCancelCount() {
+        return mCancelCount;
+    }
+
+    //复用的数量:从磁盘缓存中读取的区域以及从复用池中获得的缓冲
+    public synchronized long getReuseCount() {
+        return mDiskReuseCount + mPoolReuseCount;
+    }
+
+    //从磁盘缓存中读取,没有调用绘制方法的区域数量
+    public synchronized long getDiskReuseCount() {
+        return mDiskReuseCount;
+    }
+
+    //从复用池中获得的缓冲数量
+    public synchronized long getPoolReuseCount() {
+        return mPoolReuseCount;
+    }
+
+    //所有构建的总耗时(纳秒),包括被取消的构建
+    public synchronized long getTotalDuration() {
+        return mTotalDuration;
+    }
+
+    //耗时最长的一次构建(纳秒)
+    public synchronized long getMaxDuration() {
+        return mMaxDuration;
+    }
+
+    /**
+     * 获得耗时的次数分布,第i组为耗时不超过 {@link #getBucketBound(int)} 毫秒的构建次数
+     *
+     * @param out 用于接收数据的数组,长度为 {@link #getBucketCount()},为null时创建新的数组
+     */
+    public synchronized long[] getHistogram(long[] out) {
+        if (out == null || out.length < mHistogram.length) out = new long[mHistogram.length];
+        System.arraycopy(mHistogram, 0, out, 0, mHistogram.length);
+        return out;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_BOUNDS.length + 1;
+    }
+
+    /**
+     * 获得一个分组的耗时上限(毫秒),最后一组返回 {@link Long#MAX_VALUE}
+     */
+    public static long getBucketBound(int bucket) {
+        return bucket < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * 估算耗时的百分位数,返回所在分组的上限
+     *
+     * @param percentile 0~1
+     * @return 耗时(毫秒),没有任何记录时返回0
+     */
+    public synchronized long getDurationPercentile(float percentile) {
+        long count = 0;
+        for (long value : mHistogram) count += value;
+        if (count == 0) return 0;
+        long target = (long) Math.ceil(count * Math.max(0f, Math.min(1f, percentile)));
+        long sum = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            sum += mHistogram[i];
+            if (sum >= target && sum > 0) return getBucketBound(i);
+        }
+        return getBucketBound(mHistogram.length - 1);
+    }
+
+    /**
+     * 缓冲当前占用的内存(字节)
+     */
+    public long getBufferSize() {
+        return mView.getBufferSize();
+    }
+
+    /**
+     * 这个View创建的缓冲中从复用池获得的比例.
+     * 重写了 {@link WorldBufferView#onCreateBuffer(int, int)} 时不再经过复用池,命中率为0
+     *
+     * @return 0~1,没有任何记录时返回0
+     */
+    public synchronized float getPoolHitRate() {
+        return mCreateCount == 0 ? 0f : (float) mPoolReuseCount / mCreateCount;
+    }
+
+    /**
+     * 清空所有的统计数据
+     */
+    public synchronized void reset() {
+        mRenderCount = 0;
+        mCancelCount = 0;
+        mDiskReuseCount = 0;
+        mPoolReuseCount = 0;
+        mCreateCount = 0;
+        mTotalDuration = 0;
+        mMaxDuration = 0;
+        for (int i = 0; i < mHistogram.length; i++) mHistogram[i] = 0;
+    }
+
+    /**
+     * 记录一次构建,在缓冲构建线程中调用
+     *
+     * @param duration  构建的耗时(纳秒)
+     * @param cancelled 构建被取消或者结果已经过期
+     */
+    void onBuild(BufferLayer layer, long duration, boolean cancelled) {
+        synchronized (this) {
+            if (cancelled) {
+                mCancelCount++;
+            } else {
+                mRenderCount++;
+            }
+            mTotalDuration += duration;
+            mMaxDuration = Math.max(mMaxDuration, duration);
+            mHistogram[bucketOf(duration / 1000000)]++;
+        }
+        OnBufferBuildListener listener = mListener;
+        if (listener != null) listener.onBufferBuild(mView, layer, duration, cancelled);
+    }
+
+    /**
+     * 构建开始之前请求已经过期,没有进行绘制就被丢弃
+     */
+    synchronized void onDrop() {
+        mCancelCount++;
+    }
+
+    /**
+     * 已经记录为完成的构建,结果在交换时因为过期被丢弃,在主线程中调用
+     */
+    synchronized void onDiscard() {
+        if (mRenderCount > 0) mRenderCount--;
+        mCancelCount++;
+    }
+
+    /**
+     * 记录一次从磁盘缓存中读取的区域,在缓冲构建线程中调用
+     */
+    synchronized void onDiskReuse() {
+        mDiskReuseCount++;
+    }
+
+    /**
+     * 记录一次缓冲的创建,在缓冲构建线程中调用
+     */
+    synchronized void onCreate() {
+        mCreateCount++;
+    }
+
+    /**
+     * 记录一次从复用池中获得的缓冲,在缓冲构建线程中调用
+     */
+    synchronized void onPoolReuse() {
+        mPoolReuseCount++;
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (millis <= BUCKET_BOUNDS[i]) return i;
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * 构建的监听
+     */
+    public interface OnBufferBuildListener {
+        /**
+         * 每一次构建结束时在缓冲构建线程中调用,不要在这里执行耗时操作.
+         * 开始之前被丢弃以及从磁盘缓存中读取的区域不会回调
+         *
+         * @param view      构建的View
+         * @param layer     构建的图层,为null时为默认图层,预览为所有图层合成时也为null
+         * @param duration  构建的耗时(纳秒)
+         * @param cancelled 构建期间是否被取消
+         */
+        void onBufferBuild(WorldBufferView view, BufferLayer layer, long duration, boolean cancelled);
+    }
+}
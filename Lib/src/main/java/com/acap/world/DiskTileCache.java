@@ -0,0 +1,282 @@
+package com.acap.world;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲的磁盘缓存
+ *      将构建好的瓦片以原始像素的形式保存在磁盘上,进程重启之后内容未变化的瓦片可以直接读取,不需要重新绘制.
+ *      每个瓦片保存为一个文件:16字节的文件头(标记/宽度/高度/编码)加上像素数据,读写时使用内存映射
+ *
+ *      写入时先写入临时文件再重命名,进程意外结束时遗留的临时文件在第一次使用时被删除.
+ *      文件总大小超过 {@link #getMaxSize()} 时,最久未使用的文件会被删除.
+ *      该类的方法在缓冲构建线程中调用
+ *
+ * Created by ACap on 2021/4/21 10:48
+ * </pre>
+ */
+public final class DiskTileCache {
+
+    private static final int MAGIC = 0x57544331; //WTC1
+    private static final int HEADER_SIZE = 16;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static DiskTileCache sDefault;
+
+    /**
+     * 获得默认的磁盘缓存,位于应用缓存目录下,最大64MB
+     */
+    public static synchronized DiskTileCache getDefault(Context context) {
+        if (sDefault == null) {
+            sDefault = new DiskTileCache(new File(context.getApplicationContext().getCacheDir(), "world_tiles"), 64L << 20);
+        }
+        return sDefault;
+    }
+
+    private final File mDirectory;
+    private long mMaxSize;
+    private long mSize = -1;
+    private int mHitCount;
+    private int mMissCount;
+    private volatile boolean mIsSyncWrite;
+
+    /**
+     * @param directory 缓存文件所在的目录
+     * @param maxSize   缓存文件总大小的上限(字节)
+     */
+    public DiskTileCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 设置写入之后是否立即同步到磁盘,默认为False.
+     * 开启之后系统崩溃时也不会丢失已经写入的缓存,但每次写入都会在构建线程中等待磁盘
+     */
+    public void setSyncWrite(boolean sync) {
+        mIsSyncWrite = sync;
+    }
+
+    public boolean isSyncWrite() {
+        return mIsSyncWrite;
+    }
+
+    /**
+     * 读取缓存的像素到Bitmap中,只有尺寸与编码完全相同时才会读取
+     *
+     * @param key    缓存的Key
+     * @param bitmap 用于接收像素的Bitmap
+     * @return 读取成功时返回True
+     */
+    public boolean read(String key, Bitmap bitmap) {
+        File file = getFile(key);
+        synchronized (this) {
+            if (!file.exists()) {
+                mMissCount++;
+                return false;
+            }
+        }
+
+        boolean success = false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+            if (channel.size() == HEADER_SIZE + bytes) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                if (buffer.getInt() == MAGIC && buffer.getInt() == bitmap.getWidth() && buffer.getInt() == bitmap.getHeight()
+                        && buffer.getInt() == bitmap.getConfig().ordinal()) {
+                    bitmap.copyPixelsFromBuffer(buffer);
+                    success = true;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            success = false;
+        }
+
+        synchronized (this) {
+            if (success) {
+                mHitCount++;
+                file.setLastModified(System.currentTimeMillis());
+            } else {
+                mMissCount++;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * 将Bitmap的像素写入缓存,已经存在的缓存会被替换
+     *
+     * @param key    缓存的Key
+     * @param bitmap 需要保存的Bitmap
+     */
+    public void write(String key, Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null) return;
+        long length = HEADER_SIZE + (long) bitmap.getRowBytes() * bitmap.getHeight();
+        if (length > mMaxSize) return;
+
+        File file = getFile(key);
+        File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX + Thread.currentThread().getId());
+        synchronized (this) {
+            //在创建临时文件之前完成第一次统计,统计时删除的临时文件只可能是上一个进程遗留的
+            ensureSize();
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) return;
+
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(length);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(bitmap.getConfig().ordinal());
+            bitmap.copyPixelsToBuffer(buffer);
+            if (mIsSyncWrite) buffer.force();
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            ensureSize();
+            long old = file.length();
+            if (temp.renameTo(file)) {
+                mSize += length - old;
+                trimToSize(mMaxSize);
+            } else {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除一个缓存
+     */
+    public synchronized void remove(String key) {
+        File file = getFile(key);
+        ensureSize();
+        long length = file.length();
+        if (file.delete()) mSize -= length;
+    }
+
+    /**
+     * 删除最久未使用的缓存,直到文件总大小不超过指定的大小
+     *
+     * @param size 保留的大小(字节)
+     */
+    public synchronized void trimToSize(long size) {
+        ensureSize();
+        if (mSize <= size) return;
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        //其它线程正在写入的临时文件不计入大小,也不能删除.
+        //读取缓存时会在锁之外更新修改时间,排序之前先记录每个文件的时间与大小,保证比较的结果不变
+        ArrayList<Entry> entries = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!isTemp(file)) entries.add(new Entry(file));
+        }
+        Collections.sort(entries, OLDEST_FIRST);
+        for (int i = 0; i < entries.size() && mSize > size; i++) {
+            Entry entry = entries.get(i);
+            if (entry.file.delete()) mSize -= entry.length;
+        }
+    }
+
+    /**
+     * 删除所有的缓存
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    //缓存文件当前的总大小
+    public synchronized long getSize() {
+        ensureSize();
+        return mSize;
+    }
+
+    //读取成功的次数
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    //没有可用缓存的次数
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    //第一次使用时统计已有文件的大小,并删除上一个进程遗留的临时文件
+    private void ensureSize() {
+        if (mSize >= 0) return;
+        mSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (isTemp(file)) {
+                file.delete();
+            } else {
+                mSize += file.length();
+            }
+        }
+    }
+
+    private static boolean isTemp(File file) {
+        return file.getName().contains(TEMP_SUFFIX);
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, hash(key));
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | java.io.UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static final Comparator<Entry> OLDEST_FIRST = (a, b) -> Long.compare(a.lastModified, b.lastModified);
+
+    //排序时使用的文件信息
+    private static final class Entry {
+        final File file;
+        final long lastModified;
+        final long length;
+
+        Entry(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+    }
+}
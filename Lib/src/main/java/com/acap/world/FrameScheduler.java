@@ -0,0 +1,164 @@
+package com.acap.world;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Tip:
+ *      WorldView 的帧调度
+ *      所有的重绘请求(包括其它线程中的请求)都汇总到这里,每一个垂直同步信号最多处理一次:
+ *      - 执行等待在主线程中处理的任务,例如构建完成的缓冲的交换
+ *      - 推进相机的滚动动画
+ *      - 重新绘制View
+ *      没有任何请求时不会注册帧回调,静止的View不会产生额外的帧.
+ *      View离开窗口时移除已经注册的回调,期间的任务直接在主线程中执行(例如回收构建完成的缓冲),不再重新绘制
+ *
+ *      Android 4.1 以下没有 {@link Choreographer},使用Handler按照60fps的间隔调度
+ *
+ * Created by ACap on 2021/4/23 10:12
+ * </pre>
+ */
+final class FrameScheduler {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static final long FRAME_DELAY = 16;
+
+    private final WorldView mView;
+
+    /**
+     * 等待在下一帧执行的任务,由 this 保护
+     */
+    private ArrayList<Runnable> mPending = new ArrayList<>();
+    private ArrayList<Runnable> mRunning = new ArrayList<>();
+    /**
+     * 是否已经请求了下一帧,由 this 保护
+     */
+    private boolean mIsScheduled;
+    /**
+     * View已经离开窗口,不再请求新的帧,由 this 保护
+     */
+    private boolean mIsStopped;
+
+    private final Runnable mSchedule = this::schedule;
+    private final Runnable mRequest = this::requestFrame;
+    private final Runnable mFrame = () -> doFrame(System.nanoTime());
+    private final Runnable mFlush = this::runPending;
+    private Choreographer.FrameCallback mFrameCallback;
+
+    FrameScheduler(WorldView view) {
+        mView = view;
+        if (Build.VERSION.SDK_INT >= 16) mFrameCallback = this::doFrame;
+    }
+
+    /**
+     * 请求在下一帧重新绘制,可以在任意线程中调用,同一帧之内的多次请求会被合并
+     */
+    void requestFrame() {
+        synchronized (this) {
+            if (mIsScheduled || mIsStopped) return;
+            mIsScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            schedule();
+        } else {
+            MAIN_HANDLER.post(mSchedule);
+        }
+    }
+
+    /**
+     * 在一段时间之后请求重新绘制
+     */
+    void requestFrameDelayed(long delay) {
+        MAIN_HANDLER.removeCallbacks(mRequest);
+        MAIN_HANDLER.postDelayed(mRequest, delay);
+    }
+
+    /**
+     * 在下一帧开始时在主线程中执行任务,执行之后重新绘制.可以在任意线程中调用
+     */
+    void post(Runnable runnable) {
+        final boolean stopped;
+        synchronized (this) {
+            mPending.add(runnable);
+            stopped = mIsStopped;
+        }
+        if (stopped) {
+            //离开窗口之后不会再有新的帧,任务持有的缓冲需要及时释放
+            MAIN_HANDLER.removeCallbacks(mFlush);
+            MAIN_HANDLER.post(mFlush);
+        } else {
+            requestFrame();
+        }
+    }
+
+    /**
+     * 移除已经注册的帧回调以及延迟的请求,在View离开窗口时调用.
+     * 等待执行的任务在离开窗口的流程结束之后执行,其中构建完成的缓冲会在View释放缓冲之后被回收
+     */
+    void stop() {
+        synchronized (this) {
+            mIsStopped = true;
+            mIsScheduled = false;
+        }
+        MAIN_HANDLER.post(mFlush);
+        MAIN_HANDLER.removeCallbacks(mSchedule);
+        MAIN_HANDLER.removeCallbacks(mRequest);
+        if (Build.VERSION.SDK_INT >= 16) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        } else {
+            MAIN_HANDLER.removeCallbacks(mFrame);
+        }
+    }
+
+    /**
+     * View重新显示时恢复调度
+     */
+    void start() {
+        synchronized (this) {
+            mIsStopped = false;
+        }
+        requestFrame();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            //跨线程的请求可能在离开窗口之后才到达
+            if (mIsStopped) return;
+        }
+        if (Build.VERSION.SDK_INT >= 16) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            MAIN_HANDLER.postDelayed(mFrame, FRAME_DELAY);
+        }
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            mIsScheduled = false;
+        }
+        runPending();
+
+        //动画未结束时会再次请求下一帧
+        mView.onFrame(frameTimeNanos);
+        mView.invalidate();
+    }
+
+    //执行等待中的任务,在主线程中调用
+    private void runPending() {
+        final ArrayList<Runnable> running;
+        synchronized (this) {
+            running = mPending;
+            mPending = mRunning;
+            mRunning = running;
+        }
+        for (int i = 0; i < running.size(); i++) {
+            running.get(i).run();
+        }
+        running.clear();
+    }
+}
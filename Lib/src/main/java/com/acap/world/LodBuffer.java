@@ -0,0 +1,221 @@
+package com.acap.world;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * <pre>
+ * Tip:
+ *      支持相机高度变化(缩放)的缓冲
+ *      缓冲按照构建时的相机高度绘制,相机高度变化时不会立即重新构建,而是将已有的缓冲缩放显示:
+ *      - 缩放期间额外构建相机高度为2的整数次幂的层级缓冲,使缩放的比例始终在 √2 倍以内
+ *      - 缩放停止一段时间之后,以当前的相机高度重新构建精确的缓冲,构建完成之前继续显示缩放的缓冲
+ *      - 双指缩放期间只缩放已有的缓冲,不进行任何构建,手势结束时立即重新构建
+ *
+ * Created by ACap on 2021/4/19 15:12
+ * </pre>
+ */
+final class LodBuffer extends WorldBuffer {
+
+    /**
+     * 相机高度保持不变超过该时间之后认为缩放已经停止
+     */
+    private static final long SETTLE_DELAY = 150;
+    /**
+     * 同时保留的层级缓冲的数量
+     */
+    private static final int MAX_LEVELS = 2;
+
+    /**
+     * 缩放期间相对于精确缓冲额外占用的内存倍数:上一个精确的缓冲以及所有的层级缓冲
+     */
+    static final int ZOOM_OVERHEAD = 1 + MAX_LEVELS;
+
+    /**
+     * 以当前相机高度构建的缓冲,缩放期间为缩放开始前的缓冲
+     */
+    private WorldBuffer mExact;
+    /**
+     * 上一个精确的缓冲,新的缓冲构建完成之前作为底图显示
+     */
+    private WorldBuffer mFallback;
+    /**
+     * 层级缓冲,Key为相机高度以2为底的对数
+     */
+    private final SparseArray<WorldBuffer> mLevels = new SparseArray<>();
+
+    private final WorldParameter mLevelParams = new WorldParameter();
+    private final Rect mRect = new Rect();
+
+    /**
+     * 上一次绘制时的相机高度,与构建缓冲时的相机高度 {@link WorldBuffer#mZ} 不同
+     */
+    private float mLastZ = Float.NaN;
+    private long mZoomTime;
+
+    LodBuffer(WorldBufferView view, BufferLayer layer) {
+        super(view, layer);
+    }
+
+    @Override
+    void reset() {
+        if (mExact != null) mExact.reset();
+        if (mFallback != null) mFallback.reset();
+        for (int i = 0; i < mLevels.size(); i++) {
+            mLevels.valueAt(i).reset();
+        }
+    }
+
+    @Override
+    void invalidate(Rect region) {
+        //失效的区域为原始大小下的坐标,需要转换到每个缓冲自己的坐标
+        invalidate(mExact, region);
+        invalidate(mFallback, region);
+        for (int i = 0; i < mLevels.size(); i++) {
+            invalidate(mLevels.valueAt(i), region);
+        }
+    }
+
+    @Override
+    void predict(boolean active, int finalX, int finalY) {
+        //甩动与缩放不会同时发生,只有精确的缓冲需要提前构建
+        if (mExact == null) return;
+        float scale = mView.getCameraZ() / mExact.mZ;
+        mExact.predict(active, Math.round(finalX * scale), Math.round(finalY * scale));
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        return mExact != null && mExact.mZ == params.getCameraZ() && mExact.isCovered(params);
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        final float z = params.getCameraZ();
+        final long now = SystemClock.uptimeMillis();
+        final boolean scaling = mView.isScaling();
+        if (z != mLastZ) {
+            mLastZ = z;
+            mZoomTime = now;
+        }
+
+        if (mExact == null) {
+            mExact = mView.newBuffer(mLayer, z);
+        } else if (mExact.mZ != z && !scaling) {
+            if (now - mZoomTime >= SETTLE_DELAY) {
+                //缩放已经停止,以当前的相机高度重新构建
+                if (mFallback != null) mFallback.release();
+                mFallback = mExact;
+                int index = mLevels.indexOfKey(levelOf(z));
+                if (index >= 0 && mLevels.valueAt(index).mZ == z) {
+                    mExact = mLevels.valueAt(index);
+                    mLevels.removeAt(index);
+                } else {
+                    mExact = mView.newBuffer(mLayer, z);
+                }
+            } else {
+                mView.postInvalidateWorldDelayed(SETTLE_DELAY - (now - mZoomTime));
+            }
+        }
+
+        if (mExact.mZ == z && mExact.isCovered(params)) {
+            if (now - mZoomTime >= SETTLE_DELAY) releaseFallback();
+        } else {
+            //由粗到细依次绘制,后绘制的缓冲覆盖先绘制的缓冲
+            if (mFallback != null) drawScaled(canvas, params, mFallback);
+            WorldBuffer level = obtainLevel(z, !scaling);
+            if (level != null) drawScaled(canvas, params, level);
+        }
+        drawScaled(canvas, params, mExact);
+    }
+
+    @Override
+    void release() {
+        if (mExact != null) {
+            mExact.release();
+            mExact = null;
+        }
+        releaseFallback();
+    }
+
+    @Override
+    void trim() {
+        releaseFallback();
+        if (mExact != null) mExact.trim();
+    }
+
+    @Override
+    void restore() {
+        if (mExact != null) mExact.restore();
+    }
+
+    /**
+     * 缩放已经结束,下一次绘制时立即以当前的相机高度重新构建
+     */
+    void settle() {
+        mZoomTime = SystemClock.uptimeMillis() - SETTLE_DELAY;
+    }
+
+    private void releaseFallback() {
+        if (mFallback != null) {
+            mFallback.release();
+            mFallback = null;
+        }
+        for (int i = 0; i < mLevels.size(); i++) {
+            mLevels.valueAt(i).release();
+        }
+        mLevels.clear();
+    }
+
+    //获得与相机高度最接近的层级缓冲,只在缩放期间创建新的层级
+    private WorldBuffer obtainLevel(float z, boolean create) {
+        final int level = levelOf(z);
+        final float levelZ = (float) Math.pow(2, level);
+        if (levelZ == mExact.mZ) return null;
+
+        WorldBuffer buffer = mLevels.get(level);
+        if (buffer != null || !create || mExact.mZ == z) return buffer;
+
+        //淘汰与当前层级相距最远的层级
+        while (mLevels.size() >= MAX_LEVELS) {
+            int farthest = 0;
+            for (int i = 1; i < mLevels.size(); i++) {
+                if (Math.abs(mLevels.keyAt(i) - level) > Math.abs(mLevels.keyAt(farthest) - level)) farthest = i;
+            }
+            mLevels.valueAt(farthest).release();
+            mLevels.removeAt(farthest);
+        }
+        buffer = mView.newBuffer(mLayer, levelZ);
+        mLevels.put(level, buffer);
+        return buffer;
+    }
+
+    //将以其它相机高度构建的缓冲缩放到当前的相机高度
+    private void drawScaled(Canvas canvas, WorldParameter params, WorldBuffer buffer) {
+        final float z = params.getCameraZ();
+        if (buffer.mZ == z) {
+            buffer.draw(canvas, params);
+            return;
+        }
+        mLevelParams.set(params, buffer.mZ);
+        float scale = buffer.mZ / z;
+        int save = canvas.save();
+        canvas.scale(scale, scale);
+        buffer.draw(canvas, mLevelParams);
+        canvas.restoreToCount(save);
+    }
+
+    private void invalidate(WorldBuffer buffer, Rect region) {
+        if (buffer == null) return;
+        final float z = buffer.mZ;
+        mRect.set((int) Math.floor(region.left / z), (int) Math.floor(region.top / z),
+                (int) Math.ceil(region.right / z), (int) Math.ceil(region.bottom / z));
+        buffer.invalidate(mRect);
+    }
+
+    private static int levelOf(float z) {
+        return Math.round((float) (Math.log(z) / Math.log(2)));
+    }
+}
@@ -0,0 +1,16 @@
+package com.acap.world;
+
+/**
+ * <pre>
+ * Tip:
+ *      相机或者世界的几何参数发生变化时回调的监听器
+ *      只在参数真正发生变化时回调,事件中包含变化的内容以及变化前后的值.
+ *      通过 {@link WorldView#addOnWorldChangeListener(OnWorldChangeListener, long, java.util.concurrent.Executor)}
+ *      可以限制回调的频率或者在其它线程中回调
+ *
+ * Created by ACap on 2021/4/25 09:40
+ * </pre>
+ */
+public interface OnWorldChangeListener {
+    void onWorldChange(WorldChangeEvent event);
+}
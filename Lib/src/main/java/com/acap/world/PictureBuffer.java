@@ -0,0 +1,140 @@
+package com.acap.world;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.RenderNode;
+import android.os.Build;
+
+/**
+ * <pre>
+ * Tip:
+ *      使用绘制指令作为缓冲
+ *      在构建线程中将整个世界录制为一个 {@link Picture},每一帧只回放相机范围内的部分.
+ *      缓冲只保存绘制指令,占用的内存与绘制的复杂度有关,与世界的大小无关,适合以路径、文字为主的内容
+ *
+ *      Android 10 及以上在硬件加速时会将指令转换为 {@link RenderNode},由RenderThread直接回放
+ *
+ * Created by ACap on 2021/4/15 11:20
+ * </pre>
+ */
+final class PictureBuffer extends WorldBuffer {
+
+    private Picture mPicture;
+    private RenderNode mRenderNode;
+    private int mPictureGeneration = -1;
+
+    private volatile int mGeneration;
+    private boolean mIsBuilding;
+    private volatile boolean mIsReleased;
+    private volatile RenderToken mRenderToken;
+
+    PictureBuffer(WorldBufferView view, BufferLayer layer) {
+        super(view, layer);
+    }
+
+    /**
+     * Android 6.0 以下的硬件加速画布不支持回放 {@link Picture}
+     */
+    static boolean isSupported(WorldBufferView view) {
+        return Build.VERSION.SDK_INT >= 23 || !view.isHardwareAccelerated();
+    }
+
+    @Override
+    void reset() {
+        mGeneration++;
+        RenderToken.cancel(mRenderToken);
+    }
+
+    @Override
+    void invalidate(Rect region) {
+        //录制整个世界的指令代价很低,直接重新录制
+        reset();
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        return mPicture != null;
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        if (!mIsBuilding && mPictureGeneration != mGeneration) {
+            mIsBuilding = true;
+            mView.executeRender(mPictureBuilder);
+        }
+        if (mPicture == null) return;
+
+        int save = canvas.save();
+        canvas.clipRect(params.getCameraLeft(), params.getCameraTop(), params.getCameraRight(), params.getCameraBottom());
+        if (Build.VERSION.SDK_INT >= 29 && mRenderNode != null && canvas.isHardwareAccelerated()) {
+            canvas.drawRenderNode(mRenderNode);
+        } else {
+            canvas.drawPicture(mPicture);
+        }
+        canvas.restoreToCount(save);
+    }
+
+    @Override
+    void release() {
+        mIsReleased = true;
+        RenderToken.cancel(mRenderToken);
+        mPicture = null;
+        if (Build.VERSION.SDK_INT >= 29 && mRenderNode != null) {
+            mRenderNode.discardDisplayList();
+        }
+        mRenderNode = null;
+    }
+
+    /**
+     * 同步缓冲,在主线程中调用
+     */
+    private void setBuffer(Picture picture, int generation) {
+        mIsBuilding = false;
+        if (mIsReleased) return;
+
+        if (picture != null) {
+            mPicture = picture;
+            if (Build.VERSION.SDK_INT >= 29 && mView.isHardwareAccelerated()) {
+                if (mRenderNode == null) mRenderNode = new RenderNode("WorldBuffer");
+                mRenderNode.setPosition(0, 0, picture.getWidth(), picture.getHeight());
+                Canvas canvas = mRenderNode.beginRecording(picture.getWidth(), picture.getHeight());
+                canvas.drawPicture(picture);
+                mRenderNode.endRecording();
+            }
+        }
+        if (generation == mGeneration) mPictureGeneration = generation;
+        mView.postInvalidateAtThread();
+    }
+
+    //指令录制
+    private final Runnable mPictureBuilder = new Runnable() {
+        @Override
+        public void run() {
+            final RenderToken token = mView.newRenderToken();
+            mRenderToken = token;
+            final int generation = mGeneration;
+            Picture picture = null;
+
+            WorldSnapshot params = mView.getWorldSnapshot();
+            int worldWidth = params.getWorldWidth(mZ);
+            int worldHeight = params.getWorldHeight(mZ);
+            if (!mIsReleased && worldWidth > 0 && worldHeight > 0) {
+                final long start = System.nanoTime();
+                picture = new Picture();
+                Canvas canvas = picture.beginRecording(worldWidth, worldHeight);
+                drawRegion(canvas, 0, 0, worldWidth, worldHeight, token);
+                picture.endRecording();
+                final boolean cancelled = token.isCancelled() || generation != mGeneration || mIsReleased;
+                endBuild(start, cancelled);
+                if (cancelled) {
+                    picture = null;
+                }
+            }
+            mRenderToken = null;
+
+            final Picture result = picture;
+            mView.runOnMainThread(() -> setBuffer(result, generation));
+        }
+    };
+}
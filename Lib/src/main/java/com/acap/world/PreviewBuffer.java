@@ -0,0 +1,161 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Tip:
+ *      低分辨率的预览缓冲
+ *      在正式的缓冲构建完成之前,先以较低的分辨率绘制相机附近的区域,并使用过滤放大显示.
+ *      预览只绘制 1/(scale*scale) 的像素,能够更早地显示出有意义的内容
+ *      所有显示的图层按照 z 的顺序合成在同一张预览中
+ *
+ * Created by ACap on 2021/4/13 14:40
+ * </pre>
+ */
+final class PreviewBuffer extends WorldBuffer {
+
+    /**
+     * 缩小的倍数
+     */
+    private final int mScale;
+
+    private Bitmap mBitmap;
+    /**
+     * 预览缓冲在世界中的区域
+     */
+    private final Rect mBounds = new Rect();
+    private final Rect mRequest = new Rect();
+    private int mBitmapGeneration = -1;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private volatile int mGeneration;
+    private boolean mIsBuilding;
+    private volatile boolean mIsReleased;
+    private volatile RenderToken mRenderToken;
+
+    PreviewBuffer(WorldBufferView view, int scale) {
+        super(view, null);
+        mScale = Math.max(scale, 1);
+    }
+
+    @Override
+    void reset() {
+        mGeneration++;
+        RenderToken.cancel(mRenderToken);
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        if (mBitmap == null || mBitmapGeneration != mGeneration) return false;
+        //世界之外的区域不需要预览
+        mRequest.set((int) params.getCameraLeft(), (int) params.getCameraTop(), (int) Math.ceil(params.getCameraRight()), (int) Math.ceil(params.getCameraBottom()));
+        if (!mRequest.intersect(0, 0, params.getWorldWidth(), params.getWorldHeight())) return true;
+        return mBounds.contains(mRequest);
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        if (!mIsBuilding && !isCovered(params) && computeBounds(params, mRequest)) {
+            mIsBuilding = true;
+            ArrayList<BufferLayer> layers = new ArrayList<>();
+            mView.getVisibleBufferLayers(layers);
+            mView.executeRender(new PreviewBuilder(new Rect(mRequest), mGeneration, layers));
+        }
+
+        if (mBitmap != null) {
+            canvas.drawBitmap(mBitmap, null, mBounds, mPaint);
+        }
+    }
+
+    @Override
+    void release() {
+        mIsReleased = true;
+        RenderToken.cancel(mRenderToken);
+        if (mBitmap != null) {
+            mView.recycleBuffer(mBitmap);
+            mBitmap = null;
+        }
+    }
+
+    //相机向四周扩展半个相机的区域,避免相机稍微移动就需要重新构建
+    private boolean computeBounds(WorldParameter params, Rect out) {
+        int worldWidth = params.getWorldWidth();
+        int worldHeight = params.getWorldHeight();
+        float marginX = params.getCameraWidth() / 2;
+        float marginY = params.getCameraHeight() / 2;
+        out.set((int) Math.floor(params.getCameraLeft() - marginX), (int) Math.floor(params.getCameraTop() - marginY),
+                (int) Math.ceil(params.getCameraRight() + marginX), (int) Math.ceil(params.getCameraBottom() + marginY));
+        return out.intersect(0, 0, worldWidth, worldHeight);
+    }
+
+    /**
+     * 同步预览缓冲,在主线程中调用
+     */
+    private void setBuffer(Bitmap bitmap, Rect bounds, int generation) {
+        mIsBuilding = false;
+        if (mIsReleased) {
+            if (bitmap != null) mView.recycleBufferNow(bitmap);
+            return;
+        }
+        if (bitmap != null) {
+            if (mBitmap != null) mView.recycleBuffer(mBitmap);
+            mBitmap = bitmap;
+            //缩小时向上取整,缓冲覆盖的区域可能略大于请求的区域
+            mBounds.set(bounds.left, bounds.top, bounds.left + bitmap.getWidth() * mScale, bounds.top + bitmap.getHeight() * mScale);
+            mBitmapGeneration = generation;
+            mView.postInvalidateAtThread();
+        }
+    }
+
+    private final class PreviewBuilder implements Runnable {
+        private final Rect mRect;
+        private final int mGeneration;
+        /**
+         * 开始构建时显示的图层,默认图层为null
+         */
+        private final ArrayList<BufferLayer> mLayers;
+
+        PreviewBuilder(Rect rect, int generation, ArrayList<BufferLayer> layers) {
+            mRect = rect;
+            mGeneration = generation;
+            mLayers = layers;
+        }
+
+        @Override
+        public void run() {
+            final RenderToken token = mView.newRenderToken();
+            mRenderToken = token;
+            Bitmap bitmap = null;
+            if (!mIsReleased && mGeneration == PreviewBuffer.this.mGeneration) {
+                int width = (mRect.width() + mScale - 1) / mScale;
+                int height = (mRect.height() + mScale - 1) / mScale;
+                bitmap = mView.createBuffer(width, height);
+                if (bitmap != null) {
+                    final long start = System.nanoTime();
+                    Canvas canvas = new Canvas(bitmap);
+                    canvas.scale(1f / mScale, 1f / mScale);
+                    for (int i = 0; i < mLayers.size() && !token.isCancelled(); i++) {
+                        mView.drawWorldRegion(canvas, mRect.left, mRect.top, mRect.left, mRect.top, mRect.right, mRect.bottom, mZ, mLayers.get(i), token);
+                    }
+                    final boolean cancelled = token.isCancelled() || mIsReleased;
+                    endBuild(start, cancelled);
+                    if (cancelled) {
+                        mView.recycleBufferNow(bitmap);
+                        bitmap = null;
+                    }
+                }
+            }
+            mRenderToken = null;
+
+            final Bitmap result = bitmap;
+            mView.runOnMainThread(() -> setBuffer(result, mRect, mGeneration));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.acap.world;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲的构建线程
+ *      一个长期存活的低优先级线程,按照提交的顺序依次执行构建任务,
+ *      所有 WorldBufferView 默认共享 {@link #getDefault()},避免为每一次构建创建新的线程
+ *      任务中抛出的异常不会结束构建线程,而是转交给主线程抛出,与在主线程中绘制时的表现一致
+ *
+ * Created by ACap on 2021/4/9 09:52
+ * </pre>
+ */
+public final class RenderExecutor implements Executor {
+
+    private static RenderExecutor sDefault;
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * 获得默认的构建线程
+     */
+    public static synchronized RenderExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new RenderExecutor("WorldRender", Process.THREAD_PRIORITY_BACKGROUND);
+        }
+        return sDefault;
+    }
+
+    private final String mName;
+    private final int mPriority;
+    private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<>();
+    private Thread mThread;
+
+    /**
+     * @param name     线程的名称
+     * @param priority 线程的优先级,例如 {@link Process#THREAD_PRIORITY_BACKGROUND}
+     */
+    public RenderExecutor(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+        mQueue.offer(command);
+        synchronized (this) {
+            if (mThread == null) {
+                mThread = new Thread(this::loop, mName);
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+        }
+    }
+
+    private void loop() {
+        Process.setThreadPriority(mPriority);
+        while (true) {
+            Runnable runnable;
+            try {
+                runnable = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                //构建线程被所有View共享,不能因为一个任务的异常而停止
+                MAIN_HANDLER.post(() -> {
+                    if (e instanceof RuntimeException) throw (RuntimeException) e;
+                    if (e instanceof Error) throw (Error) e;
+                    throw new RuntimeException(e);
+                });
+            }
+        }
+    }
+}
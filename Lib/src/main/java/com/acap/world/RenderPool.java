@@ -0,0 +1,84 @@
+package com.acap.world;
+
+import android.os.Build;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * Tip:
+ *      并行构建缓冲的线程池
+ *      线程数量根据CPU核心数确定(留出一个核心给主线程),线程使用后台优先级.
+ *      Android 5.0 及以上使用工作窃取的 ForkJoinPool,以下使用固定大小的线程池
+ *
+ * Created by ACap on 2021/4/12 10:08
+ * </pre>
+ */
+public final class RenderPool {
+
+    private static Executor sDefault;
+
+    private RenderPool() {
+    }
+
+    /**
+     * 获得默认的并行构建线程池,所有 WorldBufferView 共享该对象
+     */
+    public static synchronized Executor getDefault() {
+        if (sDefault == null) {
+            sDefault = create(getParallelism());
+        }
+        return sDefault;
+    }
+
+    /**
+     * 默认线程池的并行数量
+     */
+    public static int getParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * 创建一个并行构建线程池
+     *
+     * @param parallelism 线程数量
+     */
+    public static Executor create(int parallelism) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            return new ForkJoinPool(parallelism, pool -> new RenderWorkerThread(pool), null, true);
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "WorldRenderPool-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class RenderWorkerThread extends ForkJoinWorkerThread {
+
+        RenderWorkerThread(ForkJoinPool pool) {
+            super(pool);
+            setName("WorldRenderPool-" + getPoolIndex());
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.acap.world;
+
+import android.graphics.Paint;
+
+/**
+ * <pre>
+ * Tip:
+ *      缓冲构建的取消标记
+ *      当缓冲被重置、释放或者正在构建的区域已经不再需要时,标记会被取消.
+ *      耗时的绘制可以在循环中检查 {@link #isCancelled()} 并提前结束,被取消的构建结果会被丢弃
+ *      每次构建都有自己的标记,并行构建时可以使用 {@link #getPaint()} 获得只属于这次构建的画笔
+ *
+ *      protected void onDrawWorldBuffer(Canvas canvas, RenderToken token) {
+ *          for (Item item : items) {
+ *              if (token.isCancelled()) return;
+ *              item.draw(canvas);
+ *          }
+ *      }
+ *
+ * Created by ACap on 2021/4/9 16:27
+ * </pre>
+ */
+public final class RenderToken {
+
+    private volatile boolean mIsCancelled;
+    private final Paint mTemplate;
+    private Paint mPaint;
+
+    RenderToken(Paint template) {
+        mTemplate = template;
+    }
+
+    /**
+     * 获得只属于这次构建的画笔,它是 {@link WorldBufferView#getBufferPaint()} 的副本.
+     * 并行构建时不同的线程之间不能共享同一个画笔
+     */
+    public Paint getPaint() {
+        if (mPaint == null) {
+            mPaint = new Paint(mTemplate);
+        }
+        return mPaint;
+    }
+
+    /**
+     * 判断这次构建是否已经被取消
+     */
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    void cancel() {
+        mIsCancelled = true;
+    }
+
+    static void cancel(RenderToken token) {
+        if (token != null) token.cancel();
+    }
+}
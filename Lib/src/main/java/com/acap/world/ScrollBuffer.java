@@ -0,0 +1,267 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+/**
+ * <pre>
+ * Tip:
+ *      大小为相机加上预留区域的滚动缓冲
+ *      相机移动时已经绘制好的内容会被平移复用,只重新绘制新露出的区域,
+ *      缓冲占用的内存只与View的大小有关,每次更新的工作量与滚动的距离成正比
+ *
+ * Created by ACap on 2021/4/7 14:16
+ * </pre>
+ */
+final class ScrollBuffer extends WorldBuffer {
+
+    /**
+     * 相机周围预留的区域
+     */
+    private final int mMargin;
+
+    /**
+     * 正在显示的缓冲,以及它在世界中对应的区域
+     */
+    private Bitmap mFront;
+    private final Rect mFrontRect = new Rect();
+    private int mFrontGeneration = -1;
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect mTarget = new Rect();
+    private final Rect mVisible = new Rect();
+
+    private volatile int mGeneration;
+    /**
+     * 同一时间只有一个构建任务
+     */
+    private boolean mIsBuilding;
+    private volatile boolean mIsReleased;
+    private RenderToken mRenderToken;
+    /**
+     * 局部重绘的取消标记,缓冲被重置时所有的局部重绘都会被取消
+     */
+    private RenderToken mPatchToken;
+    /**
+     * 正在进行的局部重绘的数量,局部重绘期间不移动缓冲
+     */
+    private int mPatchCount;
+    /**
+     * 构建期间失效的区域,构建完成之后重新绘制
+     */
+    private final Rect mPendingDirty = new Rect();
+
+    ScrollBuffer(WorldBufferView view, BufferLayer layer, int margin) {
+        super(view, layer);
+        mMargin = margin;
+        mPatchToken = view.newRenderToken();
+    }
+
+    @Override
+    void reset() {
+        mGeneration++;
+        RenderToken.cancel(mRenderToken);
+        mPatchToken.cancel();
+        mPatchToken = mView.newRenderToken();
+        mPatchCount = 0;
+        mPendingDirty.setEmpty();
+    }
+
+    @Override
+    void invalidate(Rect region) {
+        //正在进行的构建可能使用了旧的数据
+        if (mIsBuilding) {
+            mPendingDirty.union(region);
+            return;
+        }
+        //等待完整的构建
+        if (mFront == null || mFrontGeneration != mGeneration) return;
+
+        Rect rect = new Rect(region);
+        if (!rect.intersect(mFrontRect)) return;
+        final RenderToken token = mPatchToken;
+        mPatchCount++;
+        buildPatch(rect, token, (r, patch) -> {
+            if (token == mPatchToken) mPatchCount--;
+            if (patch != null && mFront != null) blitPatch(mFront, mFrontRect.left, mFrontRect.top, patch, r);
+        });
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        if (mFront == null) return false;
+        if (!computeVisible(params, mVisible)) return true;
+        return mFrontRect.contains(mVisible);
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        if (computeTarget(params, mTarget) && needBuild(params)) {
+            build();
+        }
+
+        if (mFront != null) {
+            canvas.drawBitmap(mFront, mFrontRect.left, mFrontRect.top, mPaint);
+        }
+    }
+
+    @Override
+    void release() {
+        mIsReleased = true;
+        RenderToken.cancel(mRenderToken);
+        mPatchToken.cancel();
+        //构建线程可能还在读取缓冲,等待它结束之后再回收
+        if (!mIsBuilding) {
+            recycleAll();
+        }
+    }
+
+    private void recycleAll() {
+        if (mFront != null) mView.recycleBuffer(mFront);
+        mFront = null;
+    }
+
+    //相机在世界中可见的区域
+    private static boolean computeVisible(WorldParameter params, Rect out) {
+        out.set((int) Math.floor(params.getCameraLeft()), (int) Math.floor(params.getCameraTop()),
+                (int) Math.ceil(params.getCameraRight()), (int) Math.ceil(params.getCameraBottom()));
+        return out.intersect(0, 0, params.getWorldWidth(), params.getWorldHeight());
+    }
+
+    //以相机为中心,计算缓冲在世界中应该覆盖的区域
+    private boolean computeTarget(WorldParameter params, Rect out) {
+        int worldWidth = params.getWorldWidth();
+        int worldHeight = params.getWorldHeight();
+        if (worldWidth <= 0 || worldHeight <= 0) return false;
+
+        int width = Math.min((int) Math.ceil(params.getCameraWidth()) + mMargin * 2, worldWidth);
+        int height = Math.min((int) Math.ceil(params.getCameraHeight()) + mMargin * 2, worldHeight);
+        if (width <= 0 || height <= 0) return false;
+
+        int left = clamp((int) params.getCameraLeft() - mMargin, 0, worldWidth - width);
+        int top = clamp((int) params.getCameraTop() - mMargin, 0, worldHeight - height);
+        out.set(left, top, left + width, top + height);
+        return true;
+    }
+
+    //判断是否需要移动缓冲
+    private boolean needBuild(WorldParameter params) {
+        if (mIsBuilding || mPatchCount > 0) return false;
+        if (mFront == null || mFrontGeneration != mGeneration) return true;
+        if (mFrontRect.width() != mTarget.width() || mFrontRect.height() != mTarget.height()) return true;
+        if (computeVisible(params, mVisible) && !mFrontRect.contains(mVisible)) return true;
+        //相机接近缓冲的边缘时提前移动缓冲
+        int threshold = Math.max(mMargin / 2, 1);
+        return Math.abs(mTarget.left - mFrontRect.left) >= threshold || Math.abs(mTarget.top - mFrontRect.top) >= threshold;
+    }
+
+    private void build() {
+        mIsBuilding = true;
+        mRenderToken = mView.newRenderToken();
+        mView.executeRender(new ScrollBuilder(new Rect(mTarget), mGeneration, mFront, new Rect(mFrontRect), mFrontGeneration == mGeneration, mRenderToken));
+    }
+
+    //构建完成,在主线程中调用
+    private void onBuilt(ScrollBuilder builder, Bitmap bitmap) {
+        mIsBuilding = false;
+        mRenderToken = null;
+
+        if (mIsReleased) {
+            if (bitmap != null) mView.recycleBufferNow(bitmap);
+            recycleAll();
+            return;
+        }
+        if (bitmap != null) {
+            //刚刚显示过的缓冲可能还在被绘制,延迟放回复用池之后才会被下一次构建取出
+            if (mFront != null) mView.recycleBuffer(mFront);
+            mFront = bitmap;
+            mFrontRect.set(builder.mRect);
+            mFrontGeneration = builder.mGeneration;
+        }
+        if (!mPendingDirty.isEmpty()) {
+            Rect dirty = new Rect(mPendingDirty);
+            mPendingDirty.setEmpty();
+            invalidate(dirty);
+        }
+        mView.postInvalidateAtThread();
+    }
+
+    private static int clamp(int value, int min, int max) {
+        if (value > max) value = max;
+        if (value < min) value = min;
+        return value;
+    }
+
+    //滚动缓冲的构建
+    private final class ScrollBuilder implements Runnable {
+        private final Rect mRect;
+        private final int mGeneration;
+        private final Bitmap mSource;
+        private final Rect mSourceRect;
+        private final boolean mIsSourceValid;
+        private final RenderToken mToken;
+
+        private final Paint mCopyPaint = new Paint();
+
+        ScrollBuilder(Rect rect, int generation, Bitmap source, Rect sourceRect, boolean isSourceValid, RenderToken token) {
+            mRect = rect;
+            mGeneration = generation;
+            mSource = source;
+            mSourceRect = sourceRect;
+            mIsSourceValid = isSourceValid && source != null;
+            mToken = token;
+            mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = mIsReleased ? null : mView.createBuffer(mRect.width(), mRect.height());
+
+            if (bitmap != null && mToken.isCancelled()) {
+                dropBuild();
+            } else if (bitmap != null) {
+                final long start = System.nanoTime();
+                Canvas canvas = new Canvas(bitmap);
+
+                Rect overlap = new Rect();
+                if (mIsSourceValid && overlap.setIntersect(mRect, mSourceRect)) {
+                    //平移已经绘制好的内容
+                    canvas.drawBitmap(mSource, mSourceRect.left - mRect.left, mSourceRect.top - mRect.top, mCopyPaint);
+                    //绘制新露出的区域
+                    if (mRect.top < overlap.top) {
+                        drawStrip(canvas, mRect.left, mRect.top, mRect.right, overlap.top);
+                    }
+                    if (overlap.bottom < mRect.bottom) {
+                        drawStrip(canvas, mRect.left, overlap.bottom, mRect.right, mRect.bottom);
+                    }
+                    if (mRect.left < overlap.left) {
+                        drawStrip(canvas, mRect.left, overlap.top, overlap.left, overlap.bottom);
+                    }
+                    if (overlap.right < mRect.right) {
+                        drawStrip(canvas, overlap.right, overlap.top, mRect.right, overlap.bottom);
+                    }
+                } else {
+                    drawStrip(canvas, mRect.left, mRect.top, mRect.right, mRect.bottom);
+                }
+                endBuild(start, mToken.isCancelled());
+            }
+            //构建被取消,丢弃这次构建的结果
+            if (bitmap != null && mToken.isCancelled()) {
+                mView.recycleBufferNow(bitmap);
+                bitmap = null;
+            }
+
+            final Bitmap result = bitmap;
+            mView.runOnMainThread(() -> onBuilt(this, result));
+        }
+
+        private void drawStrip(Canvas canvas, int left, int top, int right, int bottom) {
+            if (mToken.isCancelled()) return;
+            drawRegion(canvas, mRect.left, mRect.top, left, top, right, bottom, mToken);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+
+/**
+ * <pre>
+ * Tip:
+ *      将世界切分为固定大小的瓦片作为缓冲
+ *      只有与相机(以及相机周围的预留区域)相交的瓦片会被保留在内存中,
+ *      缓冲占用的内存只与View的大小有关,与世界的大小无关
+ *      瓦片之间相互独立,可以在多个线程中并行构建
+ *      甩动时会提前构建相机停止位置以及前进方向上一屏范围内的瓦片
+ *
+ * Created by ACap on 2021/4/6 11:02
+ * </pre>
+ */
+final class TileBuffer extends WorldBuffer {
+
+    /**
+     * 瓦片的大小
+     */
+    private final int mTileSize;
+    /**
+     * 相机周围预留的区域，该区域内的瓦片也会被构建并保留
+     */
+    private final int mMargin;
+
+    /**
+     * 常驻的瓦片,Key由瓦片的行列号组成
+     */
+    private final SparseArray<Tile> mTiles = new SparseArray<>();
+    /**
+     * 等待构建的瓦片,按照与相机中心的距离排序.该对象同时作为构建任务的锁
+     */
+    private final ArrayList<Tile> mQueue = new ArrayList<>();
+    private final ArrayList<Tile> mTemp = new ArrayList<>();
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect mVisible = new Rect();
+    private final Rect mResident = new Rect();
+    /**
+     * 预测的相机停止位置,以及前进方向上需要提前构建的瓦片范围.没有预测时为空(right小于left)
+     */
+    private boolean mIsPredicting;
+    private int mPredictX, mPredictY;
+    private final Rect mLanding = new Rect(0, 0, -1, -1);
+    private final Rect mAhead = new Rect(0, 0, -1, -1);
+
+    /**
+     * 缓冲内容的版本,每次重置缓冲时增加
+     */
+    private volatile int mGeneration;
+    /**
+     * 执行构建任务的线程,以及同时进行的构建任务的上限
+     */
+    private final Executor mExecutor;
+    private final int mParallelism;
+    /**
+     * 已经提交的构建任务的数量,由 mQueue 保护
+     */
+    private int mBuilderCount;
+    private volatile boolean mIsReleased;
+    /**
+     * 内存不足时不再保留预留区域中的瓦片,直到内存压力缓解
+     */
+    private boolean mIsTrimmed;
+    /**
+     * 局部重绘的取消标记,缓冲被重置时所有的局部重绘都会被取消
+     */
+    private RenderToken mPatchToken;
+    private final Rect mDirty = new Rect();
+
+    /**
+     * @param executor    执行构建任务的线程
+     * @param parallelism 同时进行的构建任务的上限,为1时依次构建
+     */
+    TileBuffer(WorldBufferView view, BufferLayer layer, int tileSize, int margin, Executor executor, int parallelism) {
+        super(view, layer);
+        mTileSize = tileSize;
+        mMargin = margin;
+        mExecutor = executor;
+        mParallelism = Math.max(parallelism, 1);
+        mPatchToken = view.newRenderToken();
+    }
+
+    @Override
+    void reset() {
+        //旧的瓦片继续显示，直到新的瓦片构建完成
+        mGeneration++;
+        cancelAll();
+        mPatchToken.cancel();
+        mPatchToken = mView.newRenderToken();
+    }
+
+    @Override
+    void invalidate(Rect region) {
+        if (mTiles.size() == 0) return;
+        //只重绘常驻瓦片覆盖的部分,其它部分会在瓦片被构建时绘制
+        mDirty.set(mResident.left * mTileSize, mResident.top * mTileSize, (mResident.right + 1) * mTileSize, (mResident.bottom + 1) * mTileSize);
+        final boolean resident = mDirty.intersect(region);
+
+        synchronized (mQueue) {
+            //正在构建以及已经构建完成但还未交换的瓦片可能使用了旧的数据,取消之后重新构建
+            for (int i = 0; i < mTiles.size(); i++) {
+                Tile tile = mTiles.valueAt(i);
+                if (Rect.intersects(tile.bounds, region)) {
+                    RenderToken.cancel(tile.token);
+                    tile.renderGeneration = -1;
+                    tile.version++;
+                }
+            }
+        }
+        //提前构建的瓦片不在局部重绘的范围内,丢弃它们的内容,需要时重新构建
+        for (int i = 0; i < mTiles.size(); i++) {
+            Tile tile = mTiles.valueAt(i);
+            if (!contains(mResident, tile.col, tile.row) && Rect.intersects(tile.bounds, region)) {
+                tile.generation = -1;
+                if (tile.bitmap != null) {
+                    mView.recycleBuffer(tile.bitmap);
+                    tile.bitmap = null;
+                }
+            }
+        }
+        if (!resident) return;
+
+        buildPatch(mDirty, mPatchToken, (rect, patch) -> {
+            if (patch == null) return;
+            for (int i = 0; i < mTiles.size(); i++) {
+                Tile tile = mTiles.valueAt(i);
+                if (tile.bitmap != null && tile.generation == mGeneration && Rect.intersects(tile.bounds, rect)) {
+                    blitPatch(tile.bitmap, tile.bounds.left, tile.bounds.top, patch, rect);
+                }
+            }
+        });
+    }
+
+    @Override
+    void predict(boolean active, int finalX, int finalY) {
+        mIsPredicting = active;
+        mPredictX = finalX;
+        mPredictY = finalY;
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        if (!computeRange(params, 0, mVisible)) return true;
+        for (int row = mVisible.top; row <= mVisible.bottom; row++) {
+            for (int col = mVisible.left; col <= mVisible.right; col++) {
+                Tile tile = getTile(col, row);
+                if (tile == null || tile.bitmap == null) return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        if (!computeRange(params, mIsTrimmed ? 0 : mMargin, mResident)) {
+            return;
+        }
+        computeRange(params, 0, mVisible);
+        computePrediction(params);
+
+        evict();
+        schedule(params);
+
+        for (int row = mVisible.top; row <= mVisible.bottom; row++) {
+            for (int col = mVisible.left; col <= mVisible.right; col++) {
+                Tile tile = getTile(col, row);
+                if (tile != null && tile.bitmap != null) {
+                    canvas.drawBitmap(tile.bitmap, tile.bounds.left, tile.bounds.top, mPaint);
+                }
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        mIsReleased = true;
+        synchronized (mQueue) {
+            mQueue.clear();
+        }
+        cancelAll();
+        mPatchToken.cancel();
+        for (int i = 0; i < mTiles.size(); i++) {
+            Tile tile = mTiles.valueAt(i);
+            if (tile.bitmap != null) mView.recycleBuffer(tile.bitmap);
+            tile.bitmap = null;
+        }
+        mTiles.clear();
+    }
+
+    @Override
+    void trim() {
+        mIsTrimmed = true;
+        mResident.set(mVisible);
+        evict();
+    }
+
+    @Override
+    void restore() {
+        //下一次绘制时重新构建预留区域中的瓦片
+        mIsTrimmed = false;
+    }
+
+    //取消所有正在构建的瓦片
+    private void cancelAll() {
+        synchronized (mQueue) {
+            for (int i = 0; i < mTiles.size(); i++) {
+                RenderToken.cancel(mTiles.valueAt(i).token);
+            }
+        }
+    }
+
+    //计算与相机(扩展margin之后)相交的瓦片行列范围
+    private boolean computeRange(WorldParameter params, int margin, Rect out) {
+        return computeRange(params, params.getCameraLeft() - margin, params.getCameraTop() - margin,
+                params.getCameraRight() + margin, params.getCameraBottom() + margin, out);
+    }
+
+    //计算与世界中一块区域相交的瓦片行列范围
+    private boolean computeRange(WorldParameter params, float l, float t, float r, float b, Rect out) {
+        int worldWidth = params.getWorldWidth();
+        int worldHeight = params.getWorldHeight();
+        if (worldWidth <= 0 || worldHeight <= 0) {
+            out.set(0, 0, -1, -1);
+            return false;
+        }
+
+        int maxCol = (worldWidth - 1) / mTileSize;
+        int maxRow = (worldHeight - 1) / mTileSize;
+        int left = (int) Math.floor(l / mTileSize);
+        int top = (int) Math.floor(t / mTileSize);
+        int right = (int) Math.floor((r - 1) / mTileSize);
+        int bottom = (int) Math.floor((b - 1) / mTileSize);
+        out.set(Math.max(left, 0), Math.max(top, 0), Math.min(right, maxCol), Math.min(bottom, maxRow));
+        return out.left <= out.right && out.top <= out.bottom;
+    }
+
+    //根据预测的停止位置计算需要提前构建的瓦片:停止位置的一屏,以及从当前位置向停止位置前进的一屏
+    private void computePrediction(WorldParameter params) {
+        mLanding.set(0, 0, -1, -1);
+        mAhead.set(0, 0, -1, -1);
+        if (!mIsPredicting) return;
+
+        final float width = params.getCameraWidth();
+        final float height = params.getCameraHeight();
+        final float left = params.getCameraLeft();
+        final float top = params.getCameraTop();
+        computeRange(params, mPredictX, mPredictY, mPredictX + width, mPredictY + height, mLanding);
+
+        float dx = mPredictX - left;
+        float dy = mPredictY - top;
+        float factor = 1f;
+        if (Math.abs(dx) > width) factor = Math.min(factor, width / Math.abs(dx));
+        if (Math.abs(dy) > height) factor = Math.min(factor, height / Math.abs(dy));
+        float aheadX = left + dx * factor;
+        float aheadY = top + dy * factor;
+        computeRange(params, Math.min(left, aheadX), Math.min(top, aheadY),
+                Math.max(left, aheadX) + width, Math.max(top, aheadY) + height, mAhead);
+    }
+
+    private static boolean contains(Rect range, int col, int row) {
+        return col >= range.left && col <= range.right && row >= range.top && row <= range.bottom;
+    }
+
+    //移除常驻范围以及预测范围之外的瓦片
+    private void evict() {
+        for (int i = mTiles.size() - 1; i >= 0; i--) {
+            Tile tile = mTiles.valueAt(i);
+            if (!contains(mResident, tile.col, tile.row) && !contains(mLanding, tile.col, tile.row) && !contains(mAhead, tile.col, tile.row)) {
+                mTiles.removeAt(i);
+                dropTile(tile);
+            }
+        }
+    }
+
+    //取消已经移除的瓦片的构建并回收它的缓冲
+    private void dropTile(Tile tile) {
+        synchronized (mQueue) {
+            RenderToken.cancel(tile.token);
+        }
+        if (tile.bitmap != null) {
+            mView.recycleBuffer(tile.bitmap);
+            tile.bitmap = null;
+        }
+    }
+
+    //将需要构建的瓦片排序并交给构建线程,依次为:
+    //相机范围内的瓦片、预测的停止位置、前进方向上的瓦片、预留区域中的瓦片,同一类中按照距离排列
+    private void schedule(WorldParameter params) {
+        synchronized (mQueue) {
+            mTemp.clear();
+            enqueue(params, mResident, null, null);
+            enqueue(params, mLanding, mResident, null);
+            enqueue(params, mAhead, mResident, mLanding);
+            Collections.sort(mTemp, PRIORITY);
+
+            mQueue.clear();
+            mQueue.addAll(mTemp);
+            int count = Math.min(mQueue.size(), mParallelism) - mBuilderCount;
+            for (int i = 0; i < count; i++) {
+                mBuilderCount++;
+                mExecutor.execute(mTileBuilder);
+            }
+        }
+        mTemp.clear();
+    }
+
+    //将范围内需要构建的瓦片加入mTemp,跳过已经处理过的范围
+    private void enqueue(WorldParameter params, Rect range, Rect skip1, Rect skip2) {
+        final int worldWidth = params.getWorldWidth();
+        final int worldHeight = params.getWorldHeight();
+        final float cx = (params.getCameraLeft() + params.getCameraRight()) / 2;
+        final float cy = (params.getCameraTop() + params.getCameraBottom()) / 2;
+        final float lx = mPredictX + params.getCameraWidth() / 2;
+        final float ly = mPredictY + params.getCameraHeight() / 2;
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if ((skip1 != null && contains(skip1, col, row)) || (skip2 != null && contains(skip2, col, row))) continue;
+                int key = key(col, row);
+                Tile tile = mTiles.get(key);
+                if (tile != null && (tile.col != col || tile.row != row)) {
+                    //Key相同的另一块瓦片,距离当前位置至少65536个瓦片,直接丢弃
+                    dropTile(tile);
+                    tile = null;
+                }
+                if (tile == null) {
+                    tile = new Tile(col, row);
+                    mTiles.put(key, tile);
+                }
+                tile.bounds.set(col * mTileSize, row * mTileSize, Math.min((col + 1) * mTileSize, worldWidth), Math.min((row + 1) * mTileSize, worldHeight));
+                if (tile.generation != mGeneration && tile.renderGeneration != mGeneration) {
+                    float dx, dy;
+                    if (contains(mVisible, col, row)) {
+                        tile.tier = 0;
+                    } else if (contains(mLanding, col, row)) {
+                        tile.tier = 1;
+                    } else if (contains(mAhead, col, row)) {
+                        tile.tier = 2;
+                    } else {
+                        tile.tier = 3;
+                    }
+                    if (tile.tier == 1) {
+                        dx = tile.bounds.centerX() - lx;
+                        dy = tile.bounds.centerY() - ly;
+                    } else {
+                        dx = tile.bounds.centerX() - cx;
+                        dy = tile.bounds.centerY() - cy;
+                    }
+                    tile.priority = dx * dx + dy * dy;
+                    tile.requestGeneration = mGeneration;
+                    mTemp.add(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * 瓦片构建完成,在主线程中调用
+     *
+     * @param reused 瓦片是否从磁盘缓存中读取
+     */
+    private void onTileBuilt(Tile tile, Bitmap bitmap, int generation, int version, boolean reused) {
+        //构建期间瓦片的区域被局部重绘过,结果中可能是旧的内容
+        final boolean stale;
+        synchronized (mQueue) {
+            stale = tile.version != version;
+        }
+        if (mIsReleased || stale || mTiles.get(key(tile.col, tile.row)) != tile) {
+            if (!reused) discardBuild();
+            mView.recycleBufferNow(bitmap);
+            return;
+        }
+        if (tile.bitmap != null) mView.recycleBuffer(tile.bitmap);
+        tile.bitmap = bitmap;
+        tile.generation = generation;
+        mView.postInvalidateAtThread();
+    }
+
+    //行列号超出16位时Key可能重复,读取时需要比较瓦片的行列号
+    private static int key(int col, int row) {
+        return ((row & 0xffff) << 16) | (col & 0xffff);
+    }
+
+    private Tile getTile(int col, int row) {
+        Tile tile = mTiles.get(key(col, row));
+        return tile != null && tile.col == col && tile.row == row ? tile : null;
+    }
+
+    private static final Comparator<Tile> PRIORITY = (a, b) -> a.tier != b.tier ? a.tier - b.tier : Float.compare(a.priority, b.priority);
+
+    static final class Tile {
+        final int col, row;
+        final Rect bounds = new Rect();
+        Bitmap bitmap;
+        //当前Bitmap内容对应的版本
+        int generation = -1;
+        //排队时请求的版本,由 mQueue 保护
+        int requestGeneration = -1;
+        //正在构建的版本,由 mQueue 保护
+        int renderGeneration = -1;
+        //正在构建时的取消标记,由 mQueue 保护
+        RenderToken token;
+        //瓦片区域的版本,局部重绘时增加,由 mQueue 保护
+        int version;
+        //构建的顺序,先比较tier再比较priority
+        int tier;
+        float priority;
+
+        Tile(int col, int row) {
+            this.col = col;
+            this.row = row;
+        }
+    }
+
+    //瓦片构建,每次只构建一个瓦片,使构建线程可以在多个View之间交替工作.
+    //并行构建时同一个任务会被同时提交多次,每个任务使用自己的画布和取消标记
+    private final Runnable mTileBuilder = new Runnable() {
+        @Override
+        public void run() {
+            final Tile tile;
+            final int generation, version;
+            final int left, top, right, bottom;
+            final RenderToken token = mView.newRenderToken();
+            synchronized (mQueue) {
+                //过期的请求直接丢弃,下一次绘制时会重新排列
+                while (!mQueue.isEmpty() && mQueue.get(0).requestGeneration != mGeneration) {
+                    mQueue.remove(0);
+                    dropBuild();
+                }
+                if (mQueue.isEmpty() || mIsReleased) {
+                    mBuilderCount--;
+                    return;
+                }
+                tile = mQueue.remove(0);
+                generation = tile.requestGeneration;
+                tile.renderGeneration = generation;
+                version = tile.version;
+                left = tile.bounds.left;
+                top = tile.bounds.top;
+                right = tile.bounds.right;
+                bottom = tile.bounds.bottom;
+                tile.token = token;
+            }
+
+            Bitmap bitmap = right > left && bottom > top ? mView.createBuffer(right - left, bottom - top) : null;
+            if (bitmap != null) {
+                final long start = System.nanoTime();
+                final boolean reused = drawRegionCached(bitmap, new Canvas(bitmap), left, top, right, bottom, token);
+                if (!reused) endBuild(start, token.isCancelled());
+                if (token.isCancelled()) {
+                    mView.recycleBufferNow(bitmap);
+                } else {
+                    mView.runOnMainThread(() -> onTileBuilt(tile, bitmap, generation, version, reused));
+                }
+            }
+            synchronized (mQueue) {
+                if (tile.token == token) tile.token = null;
+            }
+
+            mExecutor.execute(this);
+        }
+    };
+}
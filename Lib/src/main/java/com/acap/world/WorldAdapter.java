@@ -0,0 +1,371 @@
+package com.acap.world;
+
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Tip:
+ *      WorldView 的数据适配器
+ *      世界由沿着一个方向依次排列的物体组成,适配器只需要提供物体的数量与每个物体的长度,
+ *      世界的大小由适配器计算.只有与相机(以及前后的预留区域)相交的物体会被创建并绑定数据,
+ *      离开预留区域的物体会被回收,用于绑定新进入的物体.
+ *      物体的总数不影响内存的占用,适合小时级别、跨度数年的数据.
+ *      WorldBufferView 需要使用 TILE 或 SCROLL 缓冲模式,WORLD 与 PICTURE 模式的缓冲覆盖整个世界
+ *
+ *      class HourAdapter extends WorldAdapter&lt;HourItem&gt; {
+ *          public int getItemCount() { return hours.size(); }
+ *          public int getItemExtent(int position) { return itemWidth; }
+ *          protected boolean hasFixedExtent() { return true; }
+ *          protected HourItem onCreateItem(int viewType) { return new HourItem(); }
+ *          protected void onBindItem(HourItem item, int position) { item.hour = hours.get(position); }
+ *      }
+ *      view.setAdapter(new HourAdapter());
+ *
+ *      已经绑定的物体只能在主线程中访问.缓冲构建线程中可以通过 {@link #findPosition(float)} 与
+ *      {@link #getItemOffset(int)} 找到需要绘制的位置范围,直接读取数据进行绘制
+ *
+ * Created by ACap on 2021/4/28 10:16
+ * </pre>
+ */
+public abstract class WorldAdapter<T extends WorldAdapter.Item> {
+
+    //物体沿着横向排列
+    public static final int HORIZONTAL = 0;
+    //物体沿着纵向排列
+    public static final int VERTICAL = 1;
+
+    private final int mOrientation;
+    private WorldView mView;
+
+    /**
+     * 物体的数量与位置,数据变化时整体替换.其它线程中每次调用只读取一次,保证数量与位置来自同一份数据
+     */
+    private volatile Extents mExtents = Extents.EMPTY;
+
+    /**
+     * 已经绑定的物体,按照位置排列
+     */
+    private ArrayList<T> mAttached = new ArrayList<>();
+    private ArrayList<T> mScrap = new ArrayList<>();
+    /**
+     * 回收的物体,按照类型分组
+     */
+    private final SparseArray<ArrayList<T>> mRecycled = new SparseArray<>();
+    private long mLayoutVersion = -1;
+    /**
+     * 相机前后预留的长度,为-1时使用一个View的长度
+     */
+    private int mPrefetchMargin = -1;
+
+    public WorldAdapter() {
+        this(HORIZONTAL);
+    }
+
+    /**
+     * @param orientation 物体排列的方向 {@link #HORIZONTAL} 或者 {@link #VERTICAL}
+     */
+    public WorldAdapter(int orientation) {
+        mOrientation = orientation;
+    }
+
+    /**
+     * 物体的数量
+     */
+    public abstract int getItemCount();
+
+    /**
+     * 物体在排列方向上的长度(原始大小下的像素)
+     */
+    public abstract int getItemExtent(int position);
+
+    /**
+     * 所有物体的长度是否相同,相同时不需要保存每个物体的位置,默认为False
+     */
+    protected boolean hasFixedExtent() {
+        return false;
+    }
+
+    /**
+     * 物体的类型,不同类型的物体分别回收
+     */
+    public int getItemViewType(int position) {
+        return 0;
+    }
+
+    /**
+     * 创建一个物体,回收池中没有可用的物体时调用
+     */
+    protected abstract T onCreateItem(int viewType);
+
+    /**
+     * 为物体绑定数据,物体的位置与区域已经设置完成
+     */
+    protected abstract void onBindItem(T item, int position);
+
+    /**
+     * 物体离开预留区域被回收时调用,可以在这里释放物体持有的资源
+     */
+    protected void onRecycleItem(T item) {
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * 设置相机前后预留的长度,预留区域中的物体也会被绑定,默认为一个View的长度
+     *
+     * @param margin 原始大小下的像素
+     */
+    public void setPrefetchMargin(int margin) {
+        mPrefetchMargin = margin;
+        mLayoutVersion = -1;
+    }
+
+    /**
+     * 数据发生了变化,重新计算世界的大小并重新绑定所有的物体.需要在主线程中调用
+     */
+    public void notifyDataSetChanged() {
+        recycleAll();
+        computeOffsets();
+        mLayoutVersion = -1;
+        if (mView != null) mView.measureWorldSize();
+    }
+
+    /**
+     * 所有物体的总长度(原始大小下的像素)
+     */
+    public int getTotalExtent() {
+        Extents extents = mExtents;
+        return extents.getOffset(extents.count);
+    }
+
+    /**
+     * 物体的起始位置(原始大小下的坐标),可以在任意线程中调用
+     *
+     * @param position 物体的位置,为物体的数量时返回总长度
+     */
+    public int getItemOffset(int position) {
+        return mExtents.getOffset(position);
+    }
+
+    /**
+     * 查找排列方向上某个坐标所在的物体,可以在任意线程中调用
+     *
+     * @param offset 原始大小下的坐标
+     * @return 物体的位置,超出范围时返回第一个或者最后一个物体,没有物体时返回-1
+     */
+    public int findPosition(float offset) {
+        final Extents extents = mExtents;
+        final int count = extents.count;
+        if (count <= 0) return -1;
+        final int[] offsets = extents.offsets;
+        int position;
+        if (offsets == null) {
+            position = extents.fixed <= 0 ? 0 : (int) Math.floor(offset / extents.fixed);
+        } else {
+            //最后一个起始位置不大于 offset 的物体
+            int low = 0, high = count - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= offset) low = mid;
+                else high = mid - 1;
+            }
+            position = low;
+        }
+        return Math.max(0, Math.min(position, count - 1));
+    }
+
+    //已经绑定的物体的数量
+    public int getAttachedItemCount() {
+        return mAttached.size();
+    }
+
+    //已经绑定的物体,按照位置排列
+    public T getAttachedItem(int index) {
+        return mAttached.get(index);
+    }
+
+    /**
+     * 获得已经绑定的物体
+     *
+     * @return 物体不在预留区域之内时返回null
+     */
+    public T findAttachedItem(int position) {
+        if (mAttached.isEmpty()) return null;
+        int index = position - mAttached.get(0).mPosition;
+        return index >= 0 && index < mAttached.size() ? mAttached.get(index) : null;
+    }
+
+    /**
+     * 查找包含某个点的已经绑定的物体,用于点击检测
+     *
+     * @param x 原始大小下的世界坐标
+     * @param y 原始大小下的世界坐标
+     */
+    public T findItemAt(float x, float y) {
+        T item = findAttachedItem(findPosition(mOrientation == HORIZONTAL ? x : y));
+        return item != null && item.mBounds.contains(x, y) ? item : null;
+    }
+
+    void attach(WorldView view) {
+        mView = view;
+        computeOffsets();
+        mLayoutVersion = -1;
+    }
+
+    void detach() {
+        recycleAll();
+        mView = null;
+    }
+
+    /**
+     * 根据物体的总长度设置世界的大小,另一个方向与View的大小相同
+     */
+    void measure(WorldParameter world, int width, int height) {
+        if (mOrientation == HORIZONTAL) {
+            world.setWorldSize(getTotalExtent(), height);
+        } else {
+            world.setWorldSize(width, getTotalExtent());
+        }
+        mLayoutVersion = -1;
+    }
+
+    /**
+     * 绑定与相机以及预留区域相交的物体,回收其它物体.在每一次绘制之前调用,参数没有变化时直接返回
+     */
+    void layout(WorldParameter params) {
+        if (mLayoutVersion == params.getVersion()) return;
+        mLayoutVersion = params.getVersion();
+
+        final float z = params.getCameraZ();
+        final boolean horizontal = mOrientation == HORIZONTAL;
+        final float start = (horizontal ? params.getCameraLeft() : params.getCameraTop()) * z;
+        final float end = (horizontal ? params.getCameraRight() : params.getCameraBottom()) * z;
+        final float margin = mPrefetchMargin >= 0 ? mPrefetchMargin : end - start;
+        int first = findPosition(start - margin);
+        int last = findPosition(end + margin);
+        if (first < 0) {
+            recycleAll();
+            return;
+        }
+
+        //回收范围之外的物体,回收之后位置为-1
+        for (int i = 0; i < mAttached.size(); i++) {
+            T item = mAttached.get(i);
+            if (item.mPosition < first || item.mPosition > last) recycle(item);
+        }
+        //保留的物体仍然按照位置排列,缺少的位置重新绑定
+        ArrayList<T> attached = mScrap;
+        attached.clear();
+        int index = 0;
+        for (int position = first; position <= last; position++) {
+            while (index < mAttached.size() && mAttached.get(index).mPosition < position) index++;
+            T item = index < mAttached.size() && mAttached.get(index).mPosition == position
+                    ? mAttached.get(index++) : bind(position, params);
+            attached.add(item);
+        }
+        mScrap = mAttached;
+        mScrap.clear();
+        mAttached = attached;
+    }
+
+    private T bind(int position, WorldParameter params) {
+        final int viewType = getItemViewType(position);
+        ArrayList<T> pool = mRecycled.get(viewType);
+        T item = pool == null || pool.isEmpty() ? onCreateItem(viewType) : pool.remove(pool.size() - 1);
+        item.mPosition = position;
+        item.mViewType = viewType;
+        Extents extents = mExtents;
+        int offset = extents.getOffset(position);
+        int extent = extents.getOffset(position + 1) - offset;
+        if (mOrientation == HORIZONTAL) {
+            item.mBounds.set(offset, 0, offset + extent, params.getWorldHeight(1f));
+        } else {
+            item.mBounds.set(0, offset, params.getWorldWidth(1f), offset + extent);
+        }
+        onBindItem(item, position);
+        return item;
+    }
+
+    private void recycle(T item) {
+        onRecycleItem(item);
+        item.mPosition = -1;
+        ArrayList<T> pool = mRecycled.get(item.mViewType);
+        if (pool == null) {
+            pool = new ArrayList<>();
+            mRecycled.put(item.mViewType, pool);
+        }
+        pool.add(item);
+    }
+
+    private void recycleAll() {
+        for (int i = 0; i < mAttached.size(); i++) {
+            recycle(mAttached.get(i));
+        }
+        mAttached.clear();
+    }
+
+    //物体长度不固定时计算每个物体的起始位置
+    private void computeOffsets() {
+        final int count = Math.max(getItemCount(), 0);
+        if (hasFixedExtent()) {
+            mExtents = new Extents(count, null, count > 0 ? getItemExtent(0) : 0);
+        } else {
+            int[] offsets = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                offsets[i + 1] = offsets[i] + getItemExtent(i);
+            }
+            mExtents = new Extents(count, offsets, 0);
+        }
+    }
+
+    /**
+     * 物体的数量与位置,创建之后不再修改
+     */
+    private static final class Extents {
+        static final Extents EMPTY = new Extents(0, null, 0);
+
+        final int count;
+        //物体的起始位置(原始大小下的坐标),长度为 count+1.物体长度固定时为null
+        final int[] offsets;
+        final int fixed;
+
+        Extents(int count, int[] offsets, int fixed) {
+            this.count = count;
+            this.offsets = offsets;
+            this.fixed = fixed;
+        }
+
+        int getOffset(int position) {
+            if (offsets == null) return position * fixed;
+            return offsets[Math.max(0, Math.min(position, offsets.length - 1))];
+        }
+    }
+
+    /**
+     * 适配器创建的物体,保存物体的位置与区域
+     */
+    public static class Item {
+        int mPosition = -1;
+        int mViewType;
+        final RectF mBounds = new RectF();
+
+        //物体的位置,被回收之后为-1
+        public int getPosition() {
+            return mPosition;
+        }
+
+        public int getViewType() {
+            return mViewType;
+        }
+
+        //物体在世界中的区域(原始大小下的坐标)
+        public RectF getBounds() {
+            return mBounds;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * <pre>
+ * Tip:
+ *      使用一张与世界大小相同的Bitmap作为缓冲
+ *      世界越大缓冲占用的内存越大,适合较小的世界.超出内存预算时缓冲会被缩小,绘制时再放大
+ *
+ * Created by ACap on 2021/4/6 10:35
+ * </pre>
+ */
+final class WorldBitmapBuffer extends WorldBuffer {
+
+    /**
+     * 缓冲对象
+     */
+    private Bitmap mBitmap;
+    private int mBitmapGeneration = -1;
+    /**
+     * 缓冲缩小的倍数
+     */
+    private final int mScale;
+    private final Rect mDst = new Rect();
+
+    private Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /**
+     * 缓冲内容的版本,每次重置缓冲时增加.与缓冲对象的版本不一致时缓冲将被刷新
+     */
+    private volatile int mGeneration;
+    /**
+     * 同一时间只有一个构建任务,构建期间的多次重置只会引起一次新的构建
+     */
+    private boolean mIsBuilding;
+    private volatile boolean mIsReleased;
+    /**
+     * 正在进行的构建的取消标记
+     */
+    private volatile RenderToken mRenderToken;
+    /**
+     * 局部重绘的取消标记,缓冲被重置时所有的局部重绘都会被取消
+     */
+    private RenderToken mPatchToken;
+    /**
+     * 构建期间失效的区域,构建完成之后重新绘制
+     */
+    private final Rect mPendingDirty = new Rect();
+
+    WorldBitmapBuffer(WorldBufferView view, BufferLayer layer, int scale) {
+        super(view, layer);
+        mScale = Math.max(scale, 1);
+        mPaint.setFilterBitmap(mScale > 1);
+        mPatchToken = view.newRenderToken();
+    }
+
+    @Override
+    void reset() {
+        mGeneration++;
+        RenderToken.cancel(mRenderToken);
+        mPatchToken.cancel();
+        mPatchToken = mView.newRenderToken();
+        mPendingDirty.setEmpty();
+    }
+
+    @Override
+    void invalidate(Rect region) {
+        //缩小之后的缓冲无法对齐局部缓冲,重新构建整个缓冲
+        if (mScale > 1) {
+            reset();
+            return;
+        }
+        //正在进行的构建可能使用了旧的数据
+        if (mIsBuilding) {
+            mPendingDirty.union(region);
+            return;
+        }
+        //等待完整的构建
+        if (mBitmap == null || mBitmapGeneration != mGeneration) return;
+
+        Rect rect = new Rect(region);
+        if (!rect.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight())) return;
+        buildPatch(rect, mPatchToken, (r, patch) -> {
+            if (patch != null && mBitmap != null) blitPatch(mBitmap, 0, 0, patch, r);
+        });
+    }
+
+    @Override
+    boolean isCovered(WorldParameter params) {
+        return mBitmap != null;
+    }
+
+    @Override
+    void draw(Canvas canvas, WorldParameter params) {
+        if (!mIsBuilding && mBitmapGeneration != mGeneration) {
+            mIsBuilding = true;
+            mView.executeRender(mBufferBuilder);
+        }
+
+        if (mBitmap != null) {
+            if (mScale == 1) {
+                canvas.drawBitmap(mBitmap, 0, 0, mPaint);
+            } else {
+                mDst.set(0, 0, mBitmap.getWidth() * mScale, mBitmap.getHeight() * mScale);
+                canvas.drawBitmap(mBitmap, null, mDst, mPaint);
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        mIsReleased = true;
+        RenderToken.cancel(mRenderToken);
+        mPatchToken.cancel();
+        if (mBitmap != null) {
+            mView.recycleBuffer(mBitmap);
+            mBitmap = null;
+        }
+    }
+
+    /**
+     * 同步Buffer,在主线程中调用
+     */
+    private void setBuffer(Bitmap bitmap, int generation) {
+        mIsBuilding = false;
+        if (mIsReleased) {
+            if (bitmap != null) mView.recycleBufferNow(bitmap);
+            return;
+        }
+
+        if (bitmap != null) {
+            final Bitmap buffer_old = mBitmap;
+            mBitmap = bitmap;
+            if (buffer_old != null) {
+                mView.recycleBuffer(buffer_old);
+            }
+        }
+        //如果构建期间缓冲又被重置,下一次绘制时会开始新的构建
+        if (generation == mGeneration) {
+            mBitmapGeneration = generation;
+            if (!mPendingDirty.isEmpty()) {
+                Rect dirty = new Rect(mPendingDirty);
+                mPendingDirty.setEmpty();
+                invalidate(dirty);
+            }
+        }
+        mView.postInvalidateAtThread();
+    }
+
+    //缓存构建
+    private final Runnable mBufferBuilder = new Runnable() {
+        @Override
+        public void run() {
+            final RenderToken token = mView.newRenderToken();
+            mRenderToken = token;
+            final int generation = mGeneration;
+            Bitmap bitmap = null;
+
+            WorldSnapshot params = mView.getWorldSnapshot();
+            int worldWidth = params.getWorldWidth(mZ);
+            int worldHeight = params.getWorldHeight(mZ);
+            if (!mIsReleased && worldWidth > 0 && worldHeight > 0) {
+                bitmap = mView.createBuffer((worldWidth + mScale - 1) / mScale, (worldHeight + mScale - 1) / mScale);
+                if (bitmap != null) {
+                    Canvas canvas = new Canvas(bitmap);
+                    if (mScale > 1) canvas.scale(1f / mScale, 1f / mScale);
+                    final long start = System.nanoTime();
+                    final boolean reused = drawRegionCached(bitmap, canvas, 0, 0, worldWidth, worldHeight, token);
+                    //构建期间缓冲被重置或释放,丢弃这次构建的结果
+                    final boolean cancelled = token.isCancelled() || generation != mGeneration || mIsReleased;
+                    if (!reused) endBuild(start, cancelled);
+                    if (cancelled) {
+                        mView.recycleBufferNow(bitmap);
+                        bitmap = null;
+                    }
+                }
+            }
+            mRenderToken = null;
+
+            final Bitmap result = bitmap;
+            mView.runOnMainThread(() -> setBuffer(result, generation));
+        }
+    };
+}
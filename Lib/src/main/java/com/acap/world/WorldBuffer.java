@@ -0,0 +1,211 @@
+package com.acap.world;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+/**
+ * <pre>
+ * Tip:
+ *      WorldBufferView 的缓冲策略
+ *      负责缓冲的构建、管理以及在主线程中的合成
+ *
+ * Created by ACap on 2021/4/6 10:21
+ * </pre>
+ */
+abstract class WorldBuffer {
+
+    final WorldBufferView mView;
+    /**
+     * 缓冲所属的图层,为null时绘制 {@link WorldBufferView#onDrawWorldBuffer(Canvas, RenderToken)}
+     */
+    final BufferLayer mLayer;
+    /**
+     * 构建缓冲时使用的相机高度,缓冲中的坐标为该高度下的世界坐标
+     */
+    float mZ = 1f;
+
+    private final Canvas mPatchCanvas = new Canvas();
+    private final Paint mPatchPaint = new Paint();
+
+    WorldBuffer(WorldBufferView view, BufferLayer layer) {
+        mView = view;
+        mLayer = layer;
+        mPatchPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * 缓冲的内容已经失效，需要重新构建
+     */
+    abstract void reset();
+
+    /**
+     * 世界中的一块区域已经失效,只重新绘制这块区域.默认重置整个缓冲
+     *
+     * @param region 失效的区域(世界坐标)
+     */
+    void invalidate(Rect region) {
+        reset();
+    }
+
+    /**
+     * 判断相机范围内的缓冲是否已经构建完成
+     *
+     * @param params 世界参数
+     * @return 当缓冲能够完全覆盖相机时返回True
+     */
+    abstract boolean isCovered(WorldParameter params);
+
+    /**
+     * 在主线程中绘制缓冲，并在需要时开始构建缓冲
+     *
+     * @param canvas 已经移动到相机位置的画布
+     * @param params 世界参数
+     */
+    abstract void draw(Canvas canvas, WorldParameter params);
+
+    /**
+     * 释放缓冲持有的全部资源
+     */
+    abstract void release();
+
+    /**
+     * 相机将要移动到的位置,缓冲可以提前构建移动方向以及停止位置的内容.默认不做任何事情
+     *
+     * @param active 为False时之前的预测已经失效,提前构建的内容可以被取消
+     * @param finalX 相机停止的位置x(构建缓冲时的相机高度下的坐标)
+     * @param finalY 相机停止的位置y
+     */
+    void predict(boolean active, int finalX, int finalY) {
+    }
+
+    /**
+     * 内存不足时释放可以快速恢复的资源,例如相机之外的预留区域,默认不做任何事情
+     */
+    void trim() {
+    }
+
+    /**
+     * 内存压力已经缓解,恢复 {@link #trim()} 中停止保留的资源,默认不做任何事情
+     */
+    void restore() {
+    }
+
+    /**
+     * 在构建线程中绘制世界中的一块区域,完成后在主线程中回调.
+     * 回调结束后局部缓冲会被放回复用池
+     *
+     * @param region   需要绘制的区域(世界坐标)
+     * @param token    取消标记
+     * @param callback 绘制完成的回调,被取消或者绘制失败时局部缓冲为null
+     */
+    final void buildPatch(Rect region, RenderToken token, OnPatchBuilt callback) {
+        final Rect rect = new Rect(region);
+        mView.executeRender(() -> {
+            Bitmap bitmap = null;
+            if (token.isCancelled()) {
+                dropBuild();
+            } else {
+                bitmap = mView.createBuffer(rect.width(), rect.height());
+            }
+            boolean cancelled = true;
+            if (bitmap != null) {
+                final long start = System.nanoTime();
+                drawRegion(new Canvas(bitmap), rect.left, rect.top, rect.right, rect.bottom, token);
+                cancelled = token.isCancelled();
+                endBuild(start, cancelled);
+            }
+            final Bitmap result = bitmap;
+            final boolean completed = !cancelled;
+            mView.runOnMainThread(() -> {
+                Bitmap patch = token.isCancelled() ? null : result;
+                if (completed && patch == null) discardBuild();
+                callback.onPatchBuilt(rect, patch);
+                if (result != null) mView.recycleBufferNow(result);
+                if (patch != null) mView.postInvalidateAtThread();
+            });
+        });
+    }
+
+    /**
+     * 将世界中的一块区域绘制到画布上,画布的原点对应区域的左上角
+     */
+    final void drawRegion(Canvas canvas, int left, int top, int right, int bottom, RenderToken token) {
+        drawRegion(canvas, left, top, left, top, right, bottom, token);
+    }
+
+    /**
+     * 将世界中的一块区域绘制到画布上
+     *
+     * @param originX 画布原点在世界中的位置x
+     * @param originY 画布原点在世界中的位置y
+     */
+    final void drawRegion(Canvas canvas, int originX, int originY, int left, int top, int right, int bottom, RenderToken token) {
+        mView.drawWorldRegion(canvas, originX, originY, left, top, right, bottom, mZ, mLayer, token);
+    }
+
+    /**
+     * 优先从磁盘缓存中读取区域的内容,没有可用的缓存时绘制区域并写入磁盘缓存
+     *
+     * @param bitmap 区域的缓冲,尺寸可以小于区域(缩小的缓冲)
+     * @param canvas 绘制到缓冲上的画布,已经完成缩放
+     * @return 从磁盘缓存中读取时返回True,此时没有调用绘制方法
+     */
+    final boolean drawRegionCached(Bitmap bitmap, Canvas canvas, int left, int top, int right, int bottom, RenderToken token) {
+        final String key = mView.getBufferCacheKey(left, top, right, bottom, mZ, mLayer);
+        final DiskTileCache cache = mView.getBufferDiskCache();
+        if (key != null && cache != null && cache.read(key, bitmap)) {
+            mView.getBufferMetrics().onDiskReuse();
+            return true;
+        }
+        drawRegion(canvas, left, top, right, bottom, token);
+        if (key != null && cache != null && !token.isCancelled()) cache.write(key, bitmap);
+        return false;
+    }
+
+    /**
+     * 记录一次构建的耗时,一次构建包含它调用的所有绘制方法,在缓冲构建线程中调用
+     *
+     * @param start     构建开始时的 {@link System#nanoTime()}
+     * @param cancelled 构建被取消或者结果已经过期
+     */
+    final void endBuild(long start, boolean cancelled) {
+        mView.getBufferMetrics().onBuild(mLayer, System.nanoTime() - start, cancelled);
+    }
+
+    /**
+     * 构建开始之前请求已经过期,没有进行绘制就被丢弃
+     */
+    final void dropBuild() {
+        mView.getBufferMetrics().onDrop();
+    }
+
+    /**
+     * 已经完成的构建在交换时因为过期被丢弃,在主线程中调用
+     */
+    final void discardBuild() {
+        mView.getBufferMetrics().onDiscard();
+    }
+
+    /**
+     * 将局部缓冲复制到目标缓冲中,在主线程中调用
+     *
+     * @param target     目标缓冲
+     * @param targetLeft 目标缓冲左上角在世界中的位置x
+     * @param targetTop  目标缓冲左上角在世界中的位置y
+     * @param patch      局部缓冲
+     * @param patchRect  局部缓冲在世界中的区域
+     */
+    final void blitPatch(Bitmap target, int targetLeft, int targetTop, Bitmap patch, Rect patchRect) {
+        mPatchCanvas.setBitmap(target);
+        mPatchCanvas.drawBitmap(patch, patchRect.left - targetLeft, patchRect.top - targetTop, mPatchPaint);
+        mPatchCanvas.setBitmap(null);
+    }
+
+    interface OnPatchBuilt {
+        void onPatchBuilt(Rect region, Bitmap patch);
+    }
+}
@@ -1,14 +1,22 @@
 package com.acap.world;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Trace;
 import android.util.AttributeSet;
 
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
 /**
  * <pre>
  * Tip:
@@ -19,21 +27,86 @@ import android.util.AttributeSet;
  */
 public class WorldBufferView extends WorldView {
 
+    /**
+     * 缓冲模式:使用一张与世界大小相同的Bitmap作为缓冲
+     */
+    public static final int BUFFER_MODE_WORLD = 0;
+    /**
+     * 缓冲模式:将世界切分为固定大小的瓦片,只保留相机附近的瓦片.
+     * 缓冲占用的内存只与View的大小有关,适合非常大的世界
+     */
+    public static final int BUFFER_MODE_TILE = 1;
+    /**
+     * 缓冲模式:缓冲的大小为相机加上预留区域,滚动时平移已经绘制的内容,只绘制新露出的区域.
+     * 缓冲占用的内存只与View的大小有关,适合非常宽的世界
+     */
+    public static final int BUFFER_MODE_SCROLL = 2;
+    /**
+     * 缓冲模式:将世界录制为绘制指令,每一帧只回放相机范围内的部分.
+     * 缓冲几乎不占用像素内存,适合以路径、文字为主的内容.
+     * Android 6.0 以下开启硬件加速时不支持回放指令,会使用 {@link #BUFFER_MODE_WORLD} 代替
+     */
+    public static final int BUFFER_MODE_PICTURE = 3;
+
+    private static final int DEFAULT_TILE_SIZE = 512;
+    private static final int DEFAULT_PREVIEW_SCALE = 4;
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
     /**
      * 缓冲对象
      */
-    private Bitmap mBuffer;
+    private LodBuffer mBuffer;
+    /**
+     * 低分辨率的预览缓冲,只在缓冲第一次完全覆盖相机之前存在
+     */
+    private PreviewBuffer mPreview;
+    private boolean mIsProgressiveRender = false;
+    private int mPreviewScale = DEFAULT_PREVIEW_SCALE;
+    private boolean mIsPreviewPending;
+    //缓冲正在提前构建甩动停止位置的内容
+    private boolean mIsPredicting;
+
+    private int mBufferMode = BUFFER_MODE_WORLD;
+    private int mTileSize = DEFAULT_TILE_SIZE;
+    private int mBufferMargin = DEFAULT_TILE_SIZE;
+
+    private BitmapPool mBitmapPool = BitmapPool.getDefault();
+    private BufferBudget mBufferBudget = BufferBudget.getDefault(getContext());
+    private boolean mIsBufferOpaque = false;
+    /**
+     * 根据内存预算选择的缓冲编码、缩小倍数以及实际使用的预留区域
+     */
+    private volatile Bitmap.Config mBufferConfig = Bitmap.Config.ARGB_8888;
+    private int mBufferScale = 1;
+    private int mResidentMargin = DEFAULT_TILE_SIZE;
+    private Executor mRenderExecutor = RenderExecutor.getDefault();
+    private Executor mParallelExecutor = RenderPool.getDefault();
+    private boolean mIsParallelRender = false;
+    private final Paint mBufferPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private DiskTileCache mDiskCache;
+    private final BufferMetrics mBufferMetrics = new BufferMetrics(this);
+    /**
+     * 当前数据对应的缓存Key,在主线程中由 {@link #onCreateBufferCacheKey()} 生成
+     */
+    private volatile String mBufferCacheKey;
     /**
-     * 用于创建缓冲
+     * 默认图层内容的版本,局部重绘时增加,使磁盘中保存的旧内容不会再被读取
      */
-    private BufferBuilder mBufferBuilder;  //Buffer构造器
+    private volatile int mBufferCacheVersion;
 
-    private Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    /**
+     * 一帧之内失效的区域,在下一次绘制时合并处理
+     */
+    private final Rect mDirtyRegion = new Rect();
+    private final Rect mTempRect = new Rect();
 
     /**
-     * 构建缓冲的标志位，当它为TRUE时候，缓冲将被刷新
+     * 额外的缓冲图层,按照 z 从小到大排列
      */
-    private boolean mIsBuildBuffer = true;
+    private final ArrayList<BufferLayer> mLayers = new ArrayList<>();
+    //离开窗口之后释放缓冲时不再请求重新绘制
+    private boolean mIsAttached;
 
 
     public WorldBufferView(Context context) {
@@ -48,44 +121,518 @@ public class WorldBufferView extends WorldView {
         super(context, attrs, defStyleAttr);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mIsAttached = true;
+        getContext().getApplicationContext().registerComponentCallbacks(mTrimCallback);
+        //重新显示时恢复内存不足时停止保留的预留区域
+        restoreBuffer();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mIsAttached = false;
+        getContext().getApplicationContext().unregisterComponentCallbacks(mTrimCallback);
+        //离开窗口之后释放全部缓冲,重新显示时优先构建相机范围内的内容
+        releaseBuffer();
+    }
+
+    /**
+     * 系统内存不足时按照优先级逐步释放缓冲:
+     * <ul>
+     * <li>{@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_MODERATE}:释放预览,复用池减半,恢复之前停止保留的预留区域</li>
+     * <li>{@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW}:不在屏幕上的View释放全部缓冲,
+     * 在屏幕上的View释放缩放期间的缓冲以及相机之外的预留区域,直到内存压力缓解或者重新显示</li>
+     * <li>{@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL}:清空复用池</li>
+     * <li>{@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} 及以上:界面已经不可见,释放全部缓冲</li>
+     * </ul>
+     * 被释放的缓冲会在下一次绘制时重新构建
+     *
+     * @param level 内存等级
+     */
+    protected void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            releaseBuffer();
+            mBitmapPool.clear();
+            return;
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            if (isOnScreen()) {
+                trimBuffer();
+            } else {
+                releaseBuffer();
+            }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            releasePreview();
+            restoreBuffer();
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mBitmapPool.trimToSize(mBitmapPool.getMaxSize() / 2);
+        }
+    }
+
+    //View是否有一部分显示在屏幕上,ViewPager中不在当前页的View返回False
+    private boolean isOnScreen() {
+        return isShown() && getGlobalVisibleRect(mTempRect);
+    }
+
+    private final ComponentCallbacks2 mTrimCallback = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            WorldBufferView.this.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            WorldBufferView.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+
     @Override
     protected void measureWorldSize() {
         super.measureWorldSize();
+        //世界或者相机的大小变化之后,原来的缓冲配置可能已经超出预算
+        if (mBuffer != null && computeBufferConfig()) releaseBuffer();
         setBufferReset();
     }
 
     /**
-     * 创建缓存对象 ,为了降低对内存的使用默认使用4444编码.
+     * 设置缓冲模式
+     *
+     * @param mode {@link #BUFFER_MODE_WORLD} , {@link #BUFFER_MODE_TILE} , {@link #BUFFER_MODE_SCROLL} 或 {@link #BUFFER_MODE_PICTURE}
+     */
+    public void setBufferMode(int mode) {
+        if (mBufferMode == mode) return;
+        mBufferMode = mode;
+        releaseBuffer();
+    }
+
+    public int getBufferMode() {
+        return mBufferMode;
+    }
+
+    /**
+     * 设置瓦片的大小,只在 {@link #BUFFER_MODE_TILE} 模式下有效
+     *
+     * @param size 瓦片的边长(像素)
+     */
+    public void setBufferTileSize(int size) {
+        if (size <= 0 || mTileSize == size) return;
+        mTileSize = size;
+        if (mBufferMode == BUFFER_MODE_TILE) releaseBuffer();
+    }
+
+    /**
+     * 设置相机周围预留的区域,该区域内的内容会被提前构建并保留在内存中.
+     * 只在 {@link #BUFFER_MODE_TILE} 和 {@link #BUFFER_MODE_SCROLL} 模式下有效
+     *
+     * @param margin 预留区域的大小(像素)
+     */
+    public void setBufferMargin(int margin) {
+        if (margin < 0 || mBufferMargin == margin) return;
+        mBufferMargin = margin;
+        if (mBufferMode == BUFFER_MODE_TILE || mBufferMode == BUFFER_MODE_SCROLL) releaseBuffer();
+    }
+
+    /**
+     * 设置缓冲使用的Bitmap复用池,默认使用 {@link BitmapPool#getDefault()}
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool == null ? BitmapPool.getDefault() : pool;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * 设置缓冲的内存预算,默认使用 {@link BufferBudget#getDefault(Context)}.
+     * 持有缓冲的View数量变化时,所有View的缓冲配置会被重新计算
+     */
+    public void setBufferBudget(BufferBudget budget) {
+        if (budget == null) budget = BufferBudget.getDefault(getContext());
+        if (mBufferBudget == budget) return;
+        releaseBuffer();
+        mBufferBudget = budget;
+    }
+
+    public BufferBudget getBufferBudget() {
+        return mBufferBudget;
+    }
+
+    /**
+     * 设置缓冲的内容是否完全不透明,默认为False.
+     * 不透明的缓冲在预算不足时可以使用 {@link Bitmap.Config#RGB_565} 编码,内存占用减半
+     */
+    public void setBufferOpaque(boolean opaque) {
+        if (mIsBufferOpaque == opaque) return;
+        mIsBufferOpaque = opaque;
+        releaseBuffer();
+    }
+
+    public boolean isBufferOpaque() {
+        return mIsBufferOpaque;
+    }
+
+    /**
+     * 当前缓冲使用的编码
+     */
+    public Bitmap.Config getBufferConfig() {
+        return mBufferConfig;
+    }
+
+    /**
+     * 当前缓冲缩小的倍数,只在 {@link #BUFFER_MODE_WORLD} 模式下预算不足时大于1
+     */
+    public int getBufferScale() {
+        return mBufferScale;
+    }
+
+    /**
+     * 当前缓冲占用的内存(字节)
+     */
+    public long getBufferSize() {
+        return mBufferBudget.getSize(this);
+    }
+
+    /**
+     * 设置缓冲的磁盘缓存,默认为null(不使用).
+     * 开启之后构建好的缓冲会被写入磁盘,下次启动时数据未变化的区域直接从磁盘读取,不再调用绘制方法.
+     * 需要子类通过 {@link #onCreateBufferCacheKey()} 提供数据的标识,只在 {@link #BUFFER_MODE_TILE}
+     * 和 {@link #BUFFER_MODE_WORLD} 模式下有效
+     *
+     * @param cache 磁盘缓存,例如 {@link DiskTileCache#getDefault(Context)}
+     */
+    public void setBufferDiskCache(DiskTileCache cache) {
+        mDiskCache = cache;
+        mBufferCacheKey = cache == null ? null : onCreateBufferCacheKey();
+    }
+
+    public DiskTileCache getBufferDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * 生成当前数据的标识,作为磁盘缓存Key的一部分,在主线程中调用.
+     * 任何会改变缓冲内容的变化(数据的版本、资源等)都需要体现在返回值中,变化之后调用 {@link #setBufferReset()};
+     * 世界的大小、屏幕密度、相机高度以及缓冲的编码已经包含在Key中,不需要重复添加.
+     * 只通过 {@link BufferLayer#invalidate()} 或者局部重绘更新的内容在当前进程中不会读取旧的缓存,
+     * 但下次启动时只能依靠该标识区分,需要同样体现在返回值中.
+     * 标识相同时会直接显示磁盘中的内容,需要使用内容的摘要(例如SHA-1)或者持久化的版本号,不能使用 hashCode
+     *
+     * @return 数据的标识,为null时不使用磁盘缓存
+     */
+    protected String onCreateBufferCacheKey() {
+        return null;
+    }
+
+    /**
+     * 缓冲构建的统计数据
+     */
+    public BufferMetrics getBufferMetrics() {
+        return mBufferMetrics;
+    }
+
+    /**
+     * 设置执行缓冲构建任务的线程,默认使用 {@link RenderExecutor#getDefault()}.
+     * 同一个View同一时间只会提交一个构建任务,构建期间的多次重置会被合并为一次构建
+     */
+    public void setRenderExecutor(Executor executor) {
+        mRenderExecutor = executor == null ? RenderExecutor.getDefault() : executor;
+    }
+
+    public Executor getRenderExecutor() {
+        return mRenderExecutor;
+    }
+
+    /**
+     * 设置是否在多个线程中并行构建缓冲,默认关闭.只在 {@link #BUFFER_MODE_TILE} 模式下有效,
+     * 不同的瓦片会在 {@link RenderPool} 中同时构建.
+     * <p>
+     * 开启之后 {@link #onDrawWorldBuffer(Canvas, RenderToken)} 会在多个线程中被同时调用,子类需要保证:
+     * <ul>
+     * <li>构建期间只读取数据,不修改任何字段.数据变化时先替换数据再调用 {@link #setBufferReset()}</li>
+     * <li>不在多次调用之间共享 Paint/Path/Matrix 等可变对象,画笔使用 {@link RenderToken#getPaint()}</li>
+     * <li>只使用参数中的画布,不要保存它的引用</li>
+     * </ul>
+     * 关闭时所有的绘制都在同一个构建线程中依次进行
+     *
+     * @param enable 是否并行构建
+     */
+    public void setParallelRender(boolean enable) {
+        if (mIsParallelRender == enable) return;
+        mIsParallelRender = enable;
+        if (mBufferMode == BUFFER_MODE_TILE) releaseBuffer();
+    }
+
+    public boolean isParallelRender() {
+        return mIsParallelRender;
+    }
+
+    /**
+     * 设置并行构建使用的线程池,默认使用 {@link RenderPool#getDefault()}
+     *
+     * @param executor 线程池
+     */
+    public void setParallelRenderExecutor(Executor executor) {
+        mParallelExecutor = executor == null ? RenderPool.getDefault() : executor;
+        if (mIsParallelRender && mBufferMode == BUFFER_MODE_TILE) releaseBuffer();
+    }
+
+    /**
+     * 设置是否渐进式地构建缓冲,默认关闭.
+     * 开启之后在缓冲第一次完全覆盖相机之前,会先以较低的分辨率绘制相机附近的区域并放大显示,
+     * 正式的缓冲构建完成之后替换为原始分辨率.预览中包含所有显示的图层
+     *
+     * @param enable 是否渐进式构建
+     */
+    public void setProgressiveRender(boolean enable) {
+        if (mIsProgressiveRender == enable) return;
+        mIsProgressiveRender = enable;
+        if (!enable) releasePreview();
+    }
+
+    public boolean isProgressiveRender() {
+        return mIsProgressiveRender;
+    }
+
+    /**
+     * 设置预览缓冲缩小的倍数,默认为4,即预览缓冲的宽高为原始的1/4
+     *
+     * @param scale 缩小的倍数
+     */
+    public void setProgressiveScale(int scale) {
+        if (scale < 1 || mPreviewScale == scale) return;
+        mPreviewScale = scale;
+        releasePreview();
+    }
+
+    /**
+     * 获得构建缓冲时使用的画笔模板,每一次构建都会通过 {@link RenderToken#getPaint()} 获得它的副本
+     */
+    public Paint getBufferPaint() {
+        return mBufferPaint;
+    }
+
+    /**
+     * 创建缓存对象,编码由内存预算决定,见 {@link #getBufferConfig()}.
+     * 优先从复用池中获取已经被擦除的Bitmap,该方法在缓冲构建线程中调用
      *
      * @param width  缓冲对象的宽度
      * @param height 缓冲对象的高度
      * @return 缓冲对象
      */
     protected Bitmap onCreateBuffer(int width, int height) {
-        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_4444);
+        final Bitmap.Config config = mBufferConfig;
+        Bitmap bitmap = mBitmapPool.poll(width, height, config);
+        if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+        mBufferMetrics.onPoolReuse();
+        return bitmap;
     }
 
     /**
-     * 重置缓冲数据，使用新的缓冲数据替代原来的缓冲数据
+     * 重置缓冲数据，使用新的缓冲数据替代原来的缓冲数据.所有的图层都会被重新构建
      */
     public void setBufferReset() {
-        mIsBuildBuffer = true;
+        if (mDiskCache != null) mBufferCacheKey = onCreateBufferCacheKey();
+        if (mBuffer != null) mBuffer.reset();
+        if (mPreview != null) mPreview.reset();
+        mDirtyRegion.setEmpty();
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).reset();
+        }
+        postInvalidateAtThread();
+    }
+
+    /**
+     * 添加一个缓冲图层,图层拥有独立的缓冲,只在 {@link BufferLayer#invalidate()} 时重新构建.
+     * 同名的图层会被替换,需要在主线程中调用
+     *
+     * @param name     图层的名称
+     * @param z        绘制顺序,默认图层 {@link #onDrawWorldBuffer(Canvas, RenderToken)} 为0
+     * @param callback 绘制图层的内容,在缓冲构建线程中调用
+     * @return 新的图层
+     */
+    public BufferLayer addBufferLayer(String name, int z, BufferLayer.OnDrawBufferLayer callback) {
+        removeBufferLayer(name);
+        BufferLayer layer = new BufferLayer(this, name, z, callback);
+        mLayers.add(layer);
+        sortBufferLayers();
+        onBufferBudgetChanged();
+        postInvalidateAtThread();
+        return layer;
+    }
+
+    /**
+     * 移除一个缓冲图层,并释放它的缓冲
+     */
+    public void removeBufferLayer(String name) {
+        BufferLayer layer = getBufferLayer(name);
+        if (layer == null) return;
+        mLayers.remove(layer);
+        layer.release();
+        onBufferBudgetChanged();
+        postInvalidateAtThread();
+    }
+
+    public BufferLayer getBufferLayer(String name) {
+        for (int i = 0; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            if (layer.getName().equals(name)) return layer;
+        }
+        return null;
+    }
+
+    //图层的配置发生了变化
+    void onBufferLayerChanged(BufferLayer layer, boolean rebuild) {
+        if (rebuild) layer.release();
+        sortBufferLayers();
+        //图层的数量与缩放影响缓冲的内存估算
+        onBufferBudgetChanged();
+        postInvalidateAtThread();
+    }
+
+    /**
+     * 按照绘制顺序获得所有显示的图层,默认图层为null,在主线程中调用
+     */
+    final void getVisibleBufferLayers(ArrayList<BufferLayer> out) {
+        out.clear();
+        int index = 0;
+        for (; index < mLayers.size() && mLayers.get(index).getZ() < 0; index++) {
+            if (mLayers.get(index).isVisible()) out.add(mLayers.get(index));
+        }
+        out.add(null);
+        for (; index < mLayers.size(); index++) {
+            if (mLayers.get(index).isVisible()) out.add(mLayers.get(index));
+        }
+    }
+
+    private void sortBufferLayers() {
+        //插入排序,保持相同 z 的图层的添加顺序
+        for (int i = 1; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            int j = i - 1;
+            while (j >= 0 && mLayers.get(j).getZ() > layer.getZ()) {
+                mLayers.set(j + 1, mLayers.get(j));
+                j--;
+            }
+            mLayers.set(j + 1, layer);
+        }
+    }
+
+    /**
+     * 世界中的一块区域发生了变化,只重新绘制这块区域的缓冲.
+     * 同一帧之内的多次调用会被合并,需要在主线程中调用
+     *
+     * @param worldRegion 发生变化的区域(世界坐标)
+     */
+    public void invalidateBuffer(RectF worldRegion) {
+        if (worldRegion == null) return;
+        invalidateBuffer((int) Math.floor(worldRegion.left), (int) Math.floor(worldRegion.top),
+                (int) Math.ceil(worldRegion.right), (int) Math.ceil(worldRegion.bottom));
+    }
+
+    /**
+     * 世界中的一块区域发生了变化,只重新绘制这块区域的缓冲.
+     * 同一帧之内的多次调用会被合并,需要在主线程中调用
+     */
+    public void invalidateBuffer(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) return;
+        //局部重绘只更新内存中的缓冲,磁盘中包含该区域的内容全部失效
+        mBufferCacheVersion++;
+        mDirtyRegion.union(left, top, right, bottom);
         postInvalidateAtThread();
     }
 
     //开始绘制世界
     protected final void onDrawWorld(Canvas canvas) {
-        if (mBuffer == null) {
+        LodBuffer buffer = getBuffer();
+        WorldParameter params = getWorldParams();
+        if (!mDirtyRegion.isEmpty()) {
+            buffer.invalidate(mDirtyRegion);
+            mDirtyRegion.setEmpty();
+        }
+        for (int i = 0; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            if (layer.mBuffer != null && !layer.mDirtyRegion.isEmpty()) layer.mBuffer.invalidate(layer.mDirtyRegion);
+            layer.mDirtyRegion.setEmpty();
+        }
+        //甩动已经结束,停止位置的内容已经在常驻范围内
+        if (mIsPredicting && !isFlinging()) predictBuffer(false, 0, 0);
+        //缓冲以外的内容使用原始大小下的坐标绘制
+        final float z = params.getCameraZ();
+        if (!buffer.isCovered(params)) {
+            int save = canvas.save();
+            canvas.scale(1 / z, 1 / z);
             onDrawWorldLauncher(canvas);
+            canvas.restoreToCount(save);
+            //预览在正式的缓冲之前提交,使它能够更早地完成
+            if (mPreview != null && mPreview.mZ != z) releasePreview();
+            if (mIsProgressiveRender && mIsPreviewPending) getPreview().draw(canvas, params);
+        } else if (mIsPreviewPending) {
+            mIsPreviewPending = false;
+            releasePreview();
         }
 
-        onBuildBuffer();
-
-        if (mBuffer != null) {
-            canvas.drawBitmap(mBuffer, 0, 0, mPaint);
+        //z 小于0的图层在默认图层的下方
+        int index = 0;
+        for (; index < mLayers.size() && mLayers.get(index).getZ() < 0; index++) {
+            drawBufferLayer(canvas, params, mLayers.get(index));
+        }
+        buffer.draw(canvas, params);
+        for (; index < mLayers.size(); index++) {
+            drawBufferLayer(canvas, params, mLayers.get(index));
         }
 
+        int save = canvas.save();
+        canvas.scale(1 / z, 1 / z);
         onDrawWorldAnimation(canvas);
+        canvas.restoreToCount(save);
+    }
+
+    @Override
+    protected void onScaleEnd() {
+        super.onScaleEnd();
+        //缩放期间只缩放已有的缓冲,手势结束时重新构建一次
+        if (mBuffer != null) mBuffer.settle();
+        for (int i = 0; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            if (layer.mBuffer != null) layer.mBuffer.settle();
+        }
+    }
+
+    @Override
+    protected void onFlingStart(int finalX, int finalY) {
+        super.onFlingStart(finalX, finalY);
+        //提前构建甩动停止位置以及前进方向上的内容
+        predictBuffer(true, finalX, finalY);
+    }
+
+    @Override
+    protected void onFlingCancel() {
+        super.onFlingCancel();
+        //相机不会到达停止位置,取消提前构建的内容
+        predictBuffer(false, 0, 0);
+        postInvalidateAtThread();
+    }
+
+    private void predictBuffer(boolean active, int finalX, int finalY) {
+        mIsPredicting = active;
+        if (mBuffer != null) mBuffer.predict(active, finalX, finalY);
+        for (int i = 0; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            if (layer.mBuffer != null) layer.mBuffer.predict(active, finalX, finalY);
+        }
     }
 
     /**
@@ -97,8 +644,23 @@ public class WorldBufferView extends WorldView {
 
     }
 
+    /**
+     * 绘制缓冲内容,该方法在缓冲构建线程中调用.
+     * 当缓冲被重置或者正在绘制的区域已经不再需要时 {@link RenderToken#isCancelled()} 返回True,
+     * 耗时的绘制可以在循环中检查它并提前结束.默认调用 {@link #onDrawWorldBuffer(Canvas)}
+     *
+     * @param canvas
+     * @param token  这次构建的取消标记
+     */
+    protected void onDrawWorldBuffer(Canvas canvas, RenderToken token) {
+        onDrawWorldBuffer(canvas);
+    }
+
     /**
      * 绘制缓冲内容，通常这部分内容是静止不动的.
+     * 在 {@link #BUFFER_MODE_TILE} 和 {@link #BUFFER_MODE_SCROLL} 模式下,该方法会为每一块需要绘制的区域调用一次,
+     * 画布已经被裁剪到该区域的范围
+     * 画布使用原始大小(相机高度为1)下的世界坐标,相机高度变化时画布已经被缩放
      *
      * @param canvas
      */
@@ -115,96 +677,277 @@ public class WorldBufferView extends WorldView {
     }
 
 
-    //buffer的构建
-    private void onBuildBuffer() {
-        //如果需要构建Buffer,需要验证是否正在构建,正在构建的Buffer通常的历史的
-        if (mIsBuildBuffer) {
-            if (mBufferBuilder == null) {
-                mIsBuildBuffer = false;
-                mBufferBuilder = new BufferBuilder();
-                mBufferBuilder.setOnBufferBuildListener(bitmap -> {
-                    setBuffer(bitmap);
+    private LodBuffer getBuffer() {
+        if (mBuffer == null) {
+            computeBufferConfig();
+            mBufferBudget.register(this);
+            mBuffer = new LodBuffer(this, null);
+            mIsPreviewPending = true;
+        }
+        return mBuffer;
+    }
 
+    private void drawBufferLayer(Canvas canvas, WorldParameter params, BufferLayer layer) {
+        if (!layer.isVisible()) return;
+        if (layer.mBuffer == null) {
+            //图层使用与默认图层相同的配置
+            layer.mBuffer = new LodBuffer(this, layer);
+        }
+        layer.mBuffer.draw(canvas, params);
+    }
 
-                    mBufferBuilder = null;
-                });
-                mBufferBuilder.start();
+    /**
+     * 按照当前的缓冲模式创建以指定相机高度构建的缓冲
+     *
+     * @param layer 缓冲所属的图层,为null时为默认图层
+     * @param z     构建缓冲时使用的相机高度
+     */
+    final WorldBuffer newBuffer(BufferLayer layer, float z) {
+        //相机高度变化之后世界的大小也发生了变化
+        if (layer == null) computeBufferConfig();
+        WorldBuffer buffer;
+        if (mBufferMode == BUFFER_MODE_TILE) {
+            if (mIsParallelRender) {
+                buffer = new TileBuffer(this, layer, mTileSize, mResidentMargin, mParallelExecutor, RenderPool.getParallelism());
             } else {
-                mBufferBuilder.interrupt();
-                mBufferBuilder = null;
-                postInvalidateAtThread();
+                buffer = new TileBuffer(this, layer, mTileSize, mResidentMargin, mRenderExecutor, 1);
             }
+        } else if (mBufferMode == BUFFER_MODE_SCROLL) {
+            buffer = new ScrollBuffer(this, layer, mResidentMargin);
+        } else if (mBufferMode == BUFFER_MODE_PICTURE && PictureBuffer.isSupported(this)) {
+            buffer = new PictureBuffer(this, layer);
+        } else {
+            buffer = new WorldBitmapBuffer(this, layer, layer == null ? mBufferScale : mBufferScale * layer.getScale());
         }
+        buffer.mZ = z;
+        return buffer;
     }
 
+    private PreviewBuffer getPreview() {
+        if (mPreview == null) {
+            mPreview = new PreviewBuffer(this, mPreviewScale);
+            mPreview.mZ = getWorldParams().getCameraZ();
+        }
+        return mPreview;
+    }
+
+    //释放可以快速恢复的缓冲
+    private void trimBuffer() {
+        releasePreview();
+        if (mBuffer != null) mBuffer.trim();
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).trim();
+        }
+    }
+
+    //内存压力缓解之后恢复预留区域
+    private void restoreBuffer() {
+        if (mBuffer != null) mBuffer.restore();
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).restore();
+        }
+        if (mIsAttached) postInvalidateAtThread();
+    }
+
+    private void releasePreview() {
+        if (mPreview != null) {
+            mPreview.release();
+            mPreview = null;
+        }
+    }
 
     /**
-     * 同步Buffer
+     * 根据分到的预算选择缓冲的配置,优先保证清晰度:
+     * ARGB_8888 -> RGB_565(仅不透明时) -> 减少预留区域(瓦片/滚动模式) 或 缩小缓冲(世界模式)
+     *
+     * @return 配置是否发生了变化
      */
-    private void setBuffer(Bitmap bitmap) {
-        final Bitmap buffer_old = mBuffer;
-        mBuffer = bitmap;
-        postInvalidateAtThread();
+    private boolean computeBufferConfig() {
+        final Bitmap.Config config = mBufferConfig;
+        final int scale = mBufferScale;
+        final int margin = mResidentMargin;
+        final long share = mBufferBudget.getShare(this);
+        final Bitmap.Config compact = mIsBufferOpaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        mBufferScale = 1;
+        mResidentMargin = mBufferMargin;
+        if (estimateBufferSize(mResidentMargin, 1, Bitmap.Config.ARGB_8888) <= share) {
+            mBufferConfig = Bitmap.Config.ARGB_8888;
+        } else {
+            mBufferConfig = compact;
+            if (mBufferMode != BUFFER_MODE_TILE && mBufferMode != BUFFER_MODE_SCROLL) {
+                while (mBufferScale < 16 && estimateBufferSize(0, mBufferScale, compact) > share) {
+                    mBufferScale *= 2;
+                }
+            } else {
+                while (mResidentMargin > 0 && estimateBufferSize(mResidentMargin, 1, compact) > share) {
+                    mResidentMargin /= 2;
+                }
+            }
+        }
+        return config != mBufferConfig || scale != mBufferScale || margin != mResidentMargin;
+    }
+
+    /**
+     * 持有缓冲的View的数量或者预算发生了变化,重新分配之后配置发生变化时重新构建缓冲.
+     * 由 {@link BufferBudget} 在主线程中调用
+     */
+    final void onBufferBudgetChanged() {
+        if (mBuffer == null || !computeBufferConfig()) return;
+        //仍然持有缓冲,保留在预算中,避免其它View再次重新分配
+        releaseBuffer(false);
+    }
 
-        if (buffer_old != null) {
-            new Handler(Looper.getMainLooper()).postDelayed(() -> buffer_old.recycle(), 100);
+    //估算缓冲最多同时占用的内存:所有显示的图层,以及缩放期间额外保留的缓冲
+    private long estimateBufferSize(int margin, int scale, Bitmap.Config config) {
+        float layers = 1;
+        for (int i = 0; i < mLayers.size(); i++) {
+            BufferLayer layer = mLayers.get(i);
+            if (!layer.isVisible()) continue;
+            //世界模式下图层的缓冲会被缩小
+            boolean scaled = mBufferMode != BUFFER_MODE_TILE && mBufferMode != BUFFER_MODE_SCROLL;
+            layers += scaled ? 1f / (layer.getScale() * layer.getScale()) : 1f;
         }
+        if (getMaxCameraZ() != getMinCameraZ()) layers *= 1 + LodBuffer.ZOOM_OVERHEAD;
+        return (long) (estimateLayerSize(margin, scale, config) * layers);
+    }
+
+    //估算一个图层的缓冲最多同时占用的内存
+    private long estimateLayerSize(int margin, int scale, Bitmap.Config config) {
+        WorldParameter params = getWorldParams();
+        long worldWidth = params.getWorldWidth();
+        long worldHeight = params.getWorldHeight();
+        long width = Math.min((long) Math.ceil(params.getCameraWidth()) + margin * 2L, worldWidth);
+        long height = Math.min((long) Math.ceil(params.getCameraHeight()) + margin * 2L, worldHeight);
+        long pixels;
+        if (mBufferMode == BUFFER_MODE_PICTURE && PictureBuffer.isSupported(this)) {
+            //只保存绘制指令
+            pixels = 0;
+        } else if (mBufferMode == BUFFER_MODE_TILE) {
+            //相机与瓦片不对齐时两端各多出一个瓦片
+            long cols = Math.min((width + mTileSize - 1) / mTileSize + 1, (worldWidth + mTileSize - 1) / mTileSize);
+            long rows = Math.min((height + mTileSize - 1) / mTileSize + 1, (worldHeight + mTileSize - 1) / mTileSize);
+            pixels = cols * rows * mTileSize * mTileSize;
+        } else if (mBufferMode == BUFFER_MODE_SCROLL) {
+            //前后两个缓冲
+            pixels = width * height * 2;
+        } else {
+            //构建期间旧的缓冲仍然在显示
+            pixels = ((worldWidth + scale - 1) / scale) * ((worldHeight + scale - 1) / scale) * 2;
+        }
+        return pixels * BufferBudget.getBytesPerPixel(config);
+    }
 
+    //释放当前的缓冲,下一次绘制时将按照新的配置重新构建
+    private void releaseBuffer() {
+        releaseBuffer(true);
     }
 
-    private void clearBuffer() {
+    /**
+     * @param unregister 是否同时从内存预算中移除
+     */
+    private void releaseBuffer(boolean unregister) {
         if (mBuffer != null) {
-            mBuffer.recycle();
+            mBuffer.release();
             mBuffer = null;
         }
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).release();
+        }
+        releasePreview();
+        if (unregister) mBufferBudget.unregister(this);
+        if (mIsAttached) postInvalidateAtThread();
     }
 
-    private final void postInvalidateAtThread() {
-        if (Build.VERSION.SDK_INT >= 16) {
-            this.postInvalidateOnAnimation();
-        } else {
-            this.postInvalidate();
+    /**
+     * 将世界中的一块区域绘制到画布上
+     *
+     * @param originX 画布原点在世界中的位置x
+     * @param originY 画布原点在世界中的位置y
+     * @param z       区域坐标对应的相机高度,绘制时画布会被缩放到原始大小
+     * @param layer   需要绘制的图层,为null时绘制默认图层
+     */
+    final void drawWorldRegion(Canvas canvas, int originX, int originY, int left, int top, int right, int bottom, float z, BufferLayer layer, RenderToken token) {
+        if (Build.VERSION.SDK_INT >= 18) Trace.beginSection("WorldBuffer#draw");
+        try {
+            int save = canvas.save();
+            canvas.translate(-originX, -originY);
+            canvas.clipRect(left, top, right, bottom);
+            if (z != 1f) canvas.scale(1 / z, 1 / z);
+            if (layer == null) {
+                onDrawWorldBuffer(canvas, token);
+            } else {
+                layer.draw(canvas, token);
+            }
+            canvas.restoreToCount(save);
+        } finally {
+            //绘制方法抛出异常时也要结束区间,否则之后的区间会错位
+            if (Build.VERSION.SDK_INT >= 18) Trace.endSection();
         }
     }
 
-    //缓存构建
-    private final class BufferBuilder extends Thread {
+    /**
+     * 生成世界中一块区域的磁盘缓存Key,在缓冲构建线程中调用
+     *
+     * @param z     区域坐标对应的相机高度
+     * @param layer 区域所属的图层,为null时为默认图层
+     * @return 没有开启磁盘缓存时返回null
+     */
+    final String getBufferCacheKey(int left, int top, int right, int bottom, float z, BufferLayer layer) {
+        final String key = mBufferCacheKey;
+        if (mDiskCache == null || key == null) return null;
+        WorldSnapshot params = getWorldSnapshot();
+        return key + '|' + (layer == null ? "" : layer.getName())
+                + '#' + (layer == null ? mBufferCacheVersion : layer.mCacheVersion)
+                + '|' + params.getWorldWidth(1f) + 'x' + params.getWorldHeight(1f)
+                + '|' + getResources().getDisplayMetrics().density
+                + '|' + mBufferConfig
+                + '|' + z
+                + '|' + left + ',' + top + ',' + right + ',' + bottom;
+    }
 
-        private Action<Bitmap> mAction;
+    /**
+     * 将显示过的缓冲放回复用池,延迟放回以保证正在进行的绘制不会使用到被复用的对象
+     */
+    final void recycleBuffer(Bitmap bitmap) {
+        mBufferBudget.release(this, bitmap);
+        MAIN_HANDLER.postDelayed(() -> mBitmapPool.put(bitmap), 100);
+    }
 
-        public BufferBuilder() {
-            super();
+    /**
+     * 将从未显示过的缓冲直接放回复用池
+     */
+    final void recycleBufferNow(Bitmap bitmap) {
+        mBufferBudget.release(this, bitmap);
+        mBitmapPool.put(bitmap);
+    }
 
+    /**
+     * 创建缓冲对象并计入内存预算,在缓冲构建线程中调用
+     */
+    final Bitmap createBuffer(int width, int height) {
+        Bitmap bitmap = onCreateBuffer(width, height);
+        if (bitmap != null) {
+            mBufferBudget.acquire(this, bitmap);
+            mBufferMetrics.onCreate();
         }
+        return bitmap;
+    }
 
-        public BufferBuilder setOnBufferBuildListener(Action<Bitmap> action) {
-            mAction = action;
-            return this;
-        }
+    final RenderToken newRenderToken() {
+        return new RenderToken(mBufferPaint);
+    }
 
-        @Override
-        public void run() {
-            WorldParameter params = getWorldParams();
-            int worldWidth = params.getWorldWidth();
-            int worldHeight = params.getWorldHeight();
-            if (worldWidth > 0 && worldHeight > 0) {
-                Bitmap bitmap = onCreateBuffer(worldWidth, worldHeight);
-                if (bitmap != null) {
-                    onDrawWorldBuffer(new Canvas(bitmap));
-                    if (isInterrupted()) {
-                        bitmap.recycle();
-                    } else {
-                        if (mAction != null) {
-                            mAction.call(bitmap);
-                        }
-                    }
-                }
-            }
-        }
+    final void executeRender(Runnable runnable) {
+        mRenderExecutor.execute(runnable);
+    }
 
+    //构建的结果在下一帧开始时统一交换,同一帧内完成的多个瓦片只触发一次绘制
+    final void runOnMainThread(Runnable runnable) {
+        postOnFrame(runnable);
     }
 
-    private interface Action<T> {
-        void call(T t);
+    final void postInvalidateAtThread() {
+        postInvalidateWorld();
     }
 }
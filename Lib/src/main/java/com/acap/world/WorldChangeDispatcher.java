@@ -0,0 +1,124 @@
+package com.acap.world;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * <pre>
+ * Tip:
+ *      相机变化事件的分发
+ *      每一帧绘制之后比较相机与世界的参数,只有发生变化时才会通知监听器.
+ *      每一个监听器分别记录上一次收到的值,被限制频率的监听器在间隔结束时收到合并之后的事件
+ *
+ * Created by ACap on 2021/4/25 09:55
+ * </pre>
+ */
+final class WorldChangeDispatcher {
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final ArrayList<Registration> mRegistrations = new ArrayList<>();
+    /**
+     * 最近一次观察到的值,以及上一次分发时的值
+     */
+    private final WorldChangeEvent.Values mCurrent = new WorldChangeEvent.Values();
+    private final WorldChangeEvent.Values mLast = new WorldChangeEvent.Values();
+    private WorldSnapshot mSnapshot;
+
+    void add(OnWorldChangeListener listener, long minInterval, Executor executor) {
+        remove(listener);
+        mRegistrations.add(new Registration(listener, minInterval, executor));
+        //新的监听器在下一次绘制时收到当前的参数
+        mSnapshot = null;
+        mLast.reset();
+    }
+
+    void remove(OnWorldChangeListener listener) {
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            Registration registration = mRegistrations.get(i);
+            if (registration.listener == listener) {
+                MAIN_HANDLER.removeCallbacks(registration.pending);
+                mRegistrations.remove(i);
+            }
+        }
+    }
+
+    /**
+     * 移除等待中的合并通知,在View离开窗口时调用.重新显示之后的绘制会再次比较参数并通知
+     */
+    void cancelPending() {
+        for (int i = 0; i < mRegistrations.size(); i++) {
+            Registration registration = mRegistrations.get(i);
+            MAIN_HANDLER.removeCallbacks(registration.pending);
+            registration.isPending = false;
+        }
+        //被移除的通知由重新显示之后的第一次分发补上
+        mSnapshot = null;
+        mLast.reset();
+    }
+
+    boolean isEmpty() {
+        return mRegistrations.isEmpty();
+    }
+
+    /**
+     * 比较当前的参数,发生变化时通知监听器,在主线程中调用
+     */
+    void dispatch(WorldSnapshot snapshot) {
+        if (mRegistrations.isEmpty() || snapshot == mSnapshot) return;
+        mSnapshot = snapshot;
+        mCurrent.set(snapshot);
+        if (mLast.diff(mCurrent) == 0) return;
+        mLast.set(mCurrent);
+
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < mRegistrations.size(); i++) {
+            mRegistrations.get(i).deliver(now);
+        }
+    }
+
+    private final class Registration {
+        final OnWorldChangeListener listener;
+        final long minInterval;
+        final Executor executor;
+        //上一次通知监听器时的值
+        final WorldChangeEvent.Values delivered = new WorldChangeEvent.Values();
+        long deliveredTime = -1;
+        boolean isPending;
+        final Runnable pending = () -> {
+            isPending = false;
+            deliver(SystemClock.uptimeMillis());
+        };
+
+        Registration(OnWorldChangeListener listener, long minInterval, Executor executor) {
+            this.listener = listener;
+            this.minInterval = minInterval;
+            this.executor = executor;
+        }
+
+        void deliver(long now) {
+            if (delivered.diff(mCurrent) == 0) return;
+            if (deliveredTime >= 0 && now - deliveredTime < minInterval) {
+                //间隔之内的变化合并到间隔结束时通知
+                if (!isPending) {
+                    isPending = true;
+                    MAIN_HANDLER.postDelayed(pending, minInterval - (now - deliveredTime));
+                }
+                return;
+            }
+
+            final WorldChangeEvent event = new WorldChangeEvent(delivered, mCurrent, mSnapshot);
+            delivered.set(mCurrent);
+            deliveredTime = now;
+            if (executor == null) {
+                listener.onWorldChange(event);
+            } else {
+                executor.execute(() -> listener.onWorldChange(event));
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.acap.world;
+
+/**
+ * <pre>
+ * Tip:
+ *      相机或者世界的几何参数变化的事件
+ *      {@link #getChanges()} 为发生变化的参数的组合,同时可以获得变化前后的值.
+ *      事件对象不可变,可以在任意线程中读取.监听器收到的第一个事件中所有的参数都视为发生了变化
+ *
+ *      if (event.hasChanged(WorldChangeEvent.CHANGE_CAMERA_X)) {
+ *          header.setOffset(event.getCameraX() - event.getOldCameraX());
+ *      }
+ *
+ * Created by ACap on 2021/4/25 09:42
+ * </pre>
+ */
+public final class WorldChangeEvent {
+
+    //相机的位置x
+    public static final int CHANGE_CAMERA_X = 0x1;
+    //相机的位置y
+    public static final int CHANGE_CAMERA_Y = 0x1 << 1;
+    //相机的高度
+    public static final int CHANGE_CAMERA_Z = 0x1 << 2;
+    //世界的大小(当前相机高度下)
+    public static final int CHANGE_WORLD_SIZE = 0x1 << 3;
+    //View的大小
+    public static final int CHANGE_VIEW_SIZE = 0x1 << 4;
+
+    private final int mChanges;
+    private final int mOldCameraX, mOldCameraY, mCameraX, mCameraY;
+    private final float mOldCameraZ, mCameraZ;
+    private final int mOldWorldWidth, mOldWorldHeight, mWorldWidth, mWorldHeight;
+    private final int mOldViewWidth, mOldViewHeight, mViewWidth, mViewHeight;
+    private final WorldSnapshot mSnapshot;
+
+    WorldChangeEvent(Values old, Values now, WorldSnapshot snapshot) {
+        mSnapshot = snapshot;
+        mChanges = old.diff(now);
+        mOldCameraX = old.cameraX;
+        mOldCameraY = old.cameraY;
+        mOldCameraZ = old.cameraZ;
+        mOldWorldWidth = old.worldWidth;
+        mOldWorldHeight = old.worldHeight;
+        mOldViewWidth = old.viewWidth;
+        mOldViewHeight = old.viewHeight;
+        mCameraX = now.cameraX;
+        mCameraY = now.cameraY;
+        mCameraZ = now.cameraZ;
+        mWorldWidth = now.worldWidth;
+        mWorldHeight = now.worldHeight;
+        mViewWidth = now.viewWidth;
+        mViewHeight = now.viewHeight;
+    }
+
+    /**
+     * 变化之后的世界参数
+     */
+    public WorldSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * 发生变化的参数,为 CHANGE_* 的组合
+     */
+    public int getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * 判断参数中的任意一个是否发生了变化
+     *
+     * @param changes CHANGE_* 的组合
+     */
+    public boolean hasChanged(int changes) {
+        return (mChanges & changes) != 0;
+    }
+
+    public int getOldCameraX() {
+        return mOldCameraX;
+    }
+
+    public int getOldCameraY() {
+        return mOldCameraY;
+    }
+
+    public float getOldCameraZ() {
+        return mOldCameraZ;
+    }
+
+    public int getCameraX() {
+        return mCameraX;
+    }
+
+    public int getCameraY() {
+        return mCameraY;
+    }
+
+    public float getCameraZ() {
+        return mCameraZ;
+    }
+
+    public int getOldWorldWidth() {
+        return mOldWorldWidth;
+    }
+
+    public int getOldWorldHeight() {
+        return mOldWorldHeight;
+    }
+
+    public int getWorldWidth() {
+        return mWorldWidth;
+    }
+
+    public int getWorldHeight() {
+        return mWorldHeight;
+    }
+
+    public int getOldViewWidth() {
+        return mOldViewWidth;
+    }
+
+    public int getOldViewHeight() {
+        return mOldViewHeight;
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    /**
+     * 参与比较的参数值
+     */
+    static final class Values {
+        int cameraX, cameraY;
+        float cameraZ = Float.NaN;
+        int worldWidth, worldHeight;
+        int viewWidth, viewHeight;
+
+        void reset() {
+            cameraZ = Float.NaN;
+        }
+
+        void set(WorldSnapshot params) {
+            cameraX = (int) params.getCameraLeft();
+            cameraY = (int) params.getCameraTop();
+            cameraZ = params.getCameraZ();
+            worldWidth = params.getWorldWidth();
+            worldHeight = params.getWorldHeight();
+            viewWidth = params.getViewWidth();
+            viewHeight = params.getViewHeight();
+        }
+
+        void set(Values src) {
+            cameraX = src.cameraX;
+            cameraY = src.cameraY;
+            cameraZ = src.cameraZ;
+            worldWidth = src.worldWidth;
+            worldHeight = src.worldHeight;
+            viewWidth = src.viewWidth;
+            viewHeight = src.viewHeight;
+        }
+
+        //与另一组值比较,返回发生变化的参数.未初始化时所有参数都视为发生了变化
+        int diff(Values other) {
+            if (Float.isNaN(cameraZ)) {
+                return CHANGE_CAMERA_X | CHANGE_CAMERA_Y | CHANGE_CAMERA_Z | CHANGE_WORLD_SIZE | CHANGE_VIEW_SIZE;
+            }
+            int changes = 0;
+            if (cameraX != other.cameraX) changes |= CHANGE_CAMERA_X;
+            if (cameraY != other.cameraY) changes |= CHANGE_CAMERA_Y;
+            if (cameraZ != other.cameraZ) changes |= CHANGE_CAMERA_Z;
+            if (worldWidth != other.worldWidth || worldHeight != other.worldHeight) changes |= CHANGE_WORLD_SIZE;
+            if (viewWidth != other.viewWidth || viewHeight != other.viewHeight) changes |= CHANGE_VIEW_SIZE;
+            return changes;
+        }
+    }
+}
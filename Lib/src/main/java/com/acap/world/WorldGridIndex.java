@@ -0,0 +1,167 @@
+package com.acap.world;
+
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <pre>
+ * Tip:
+ *      世界中物体的空间索引
+ *      将世界切分为固定大小的网格,每个物体按照它的区域登记在相交的格子中.
+ *      点击检测与可见性剔除只需要检查相关的格子,与物体的总数无关
+ *
+ *      WorldGridIndex&lt;Item&gt; index = new WorldGridIndex&lt;&gt;(256);
+ *      index.put(item, item.left, item.top, item.right, item.bottom);
+ *      Item hit = index.queryPoint(x, y);
+ *      index.queryRect(cameraRect, mVisibleItems);
+ *
+ *      查询不会修改索引,也不会创建新的对象,多个线程可以同时查询.
+ *      修改索引时不能同时进行查询,需要在其它线程中查询时可以构建新的索引并整体替换
+ *
+ * Created by ACap on 2021/4/27 15:30
+ * </pre>
+ */
+public final class WorldGridIndex<T> {
+
+    private final int mCellSize;
+    /**
+     * 格子中的物体,Key由格子的行列号组成
+     */
+    private final SparseArray<ArrayList<Entry<T>>> mCells = new SparseArray<>();
+    private final HashMap<T, Entry<T>> mEntries = new HashMap<>();
+
+    /**
+     * @param cellSize 格子的大小,通常与单个物体的大小相当
+     */
+    public WorldGridIndex(int cellSize) {
+        mCellSize = Math.max(cellSize, 1);
+    }
+
+    /**
+     * 登记一个物体,已经登记的物体会更新它的区域
+     *
+     * @param item 物体
+     */
+    public void put(T item, float left, float top, float right, float bottom) {
+        remove(item);
+        Entry<T> entry = new Entry<>(item, left, top, right, bottom,
+                cell(left), cell(top), cell(Math.max(left, right)), cell(Math.max(top, bottom)));
+        mEntries.put(item, entry);
+        for (int row = entry.row0; row <= entry.row1; row++) {
+            for (int col = entry.col0; col <= entry.col1; col++) {
+                int key = key(col, row);
+                ArrayList<Entry<T>> cell = mCells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<>();
+                    mCells.put(key, cell);
+                }
+                cell.add(entry);
+            }
+        }
+    }
+
+    public void put(T item, RectF bounds) {
+        put(item, bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    /**
+     * 移除一个物体
+     */
+    public void remove(T item) {
+        Entry<T> entry = mEntries.remove(item);
+        if (entry == null) return;
+        for (int row = entry.row0; row <= entry.row1; row++) {
+            for (int col = entry.col0; col <= entry.col1; col++) {
+                ArrayList<Entry<T>> cell = mCells.get(key(col, row));
+                if (cell != null) cell.remove(entry);
+            }
+        }
+    }
+
+    public void clear() {
+        mCells.clear();
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * 查找包含某个点的物体,多个物体重叠时返回最后登记的物体
+     *
+     * @return 没有物体包含该点时返回null
+     */
+    public T queryPoint(float x, float y) {
+        ArrayList<Entry<T>> cell = mCells.get(key(cell(x), cell(y)));
+        if (cell == null) return null;
+        for (int i = cell.size() - 1; i >= 0; i--) {
+            Entry<T> entry = cell.get(i);
+            if (x >= entry.left && x < entry.right && y >= entry.top && y < entry.bottom) return entry.item;
+        }
+        return null;
+    }
+
+    /**
+     * 查找与区域相交的所有物体,每个物体只会出现一次
+     *
+     * @param out 接收结果的列表,结果追加在列表的末尾
+     * @return 找到的物体的数量
+     */
+    public int queryRect(float left, float top, float right, float bottom, List<? super T> out) {
+        if (left >= right || top >= bottom) return 0;
+        final int col0 = cell(left), row0 = cell(top);
+        final int col1 = cell(right), row1 = cell(bottom);
+        int count = 0;
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                ArrayList<Entry<T>> cell = mCells.get(key(col, row));
+                if (cell == null) continue;
+                for (int i = 0; i < cell.size(); i++) {
+                    Entry<T> entry = cell.get(i);
+                    if (entry.left >= right || entry.right <= left || entry.top >= bottom || entry.bottom <= top) continue;
+                    //跨越多个格子的物体只在与区域相交的第一个格子中返回
+                    if (col != Math.max(entry.col0, col0) || row != Math.max(entry.row0, row0)) continue;
+                    out.add(entry.item);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int queryRect(RectF rect, List<? super T> out) {
+        return queryRect(rect.left, rect.top, rect.right, rect.bottom, out);
+    }
+
+    private int cell(float value) {
+        return (int) Math.floor(value / mCellSize);
+    }
+
+    //行列号超出16位时Key可能重复,查询时会按照区域过滤
+    private static int key(int col, int row) {
+        return ((row & 0xffff) << 16) | (col & 0xffff);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final float left, top, right, bottom;
+        final int col0, row0, col1, row1;
+
+        Entry(T item, float left, float top, float right, float bottom, int col0, int row0, int col1, int row1) {
+            this.item = item;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.col0 = col0;
+            this.row0 = row0;
+            this.col1 = col1;
+            this.row1 = row1;
+        }
+    }
+}
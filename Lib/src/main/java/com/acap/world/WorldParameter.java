@@ -1,9 +1,13 @@
 package com.acap.world;
 
+import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * <pre>
  * 世界的基础参数
@@ -59,8 +63,43 @@ public final class WorldParameter implements Parcelable {
 
     private int mFlag;
 
+    /**
+     * 所有世界参数共用的版本号,保证不同对象产生的快照版本也不会重复
+     */
+    private static final AtomicLong VERSION = new AtomicLong();
+    private long mVersion = VERSION.incrementAndGet();
+    /**
+     * 只有影响相机范围限制的参数(大小、高度、可见范围)变化时才更新的版本号,滚动不会改变
+     */
+    private long mGeometryVersion = mVersion;
+    private WorldSnapshot mSnapshot;
+
+    /**
+     * 世界坐标(原始大小)与屏幕坐标(View中的位置)之间的变换,参数变化之后在第一次使用时重新计算
+     */
+    private final Matrix mWorldToScreen = new Matrix();
+    private final Matrix mScreenToWorld = new Matrix();
+    private long mMatrixVersion = -1;
+    /**
+     * 相机范围限制,大小或者高度变化之后在第一次使用时重新计算,滚动时保持不变
+     */
+    private final Rect mRestrict = new Rect();
+    private long mRestrictVersion = -1;
+
+
+    //任何参数被修改之后调用
+    private void onModify() {
+        mVersion = VERSION.incrementAndGet();
+    }
+
+    //大小、高度或者可见范围被修改之后调用
+    private void onGeometryModify() {
+        onModify();
+        mGeometryVersion = mVersion;
+    }
 
     private void onChange() {
+        onGeometryModify();
         if (getWorldWidth() > getViewWidth()) mFlag |= FLAG_HORIZONTAL_SCROLL_ENABLE;
         else mFlag &= ~FLAG_HORIZONTAL_SCROLL_ENABLE;
 
@@ -93,11 +132,20 @@ public final class WorldParameter implements Parcelable {
 
 
     public int getWorldWidth() {
-        return (int) (world_width / getCameraZ());
+        return getWorldWidth(getCameraZ());
     }
 
     public int getWorldHeight() {
-        return (int) (world_height / getCameraZ());
+        return getWorldHeight(getCameraZ());
+    }
+
+    //相机在指定高度时世界的大小
+    public int getWorldWidth(float z) {
+        return (int) (world_width / z);
+    }
+
+    public int getWorldHeight(float z) {
+        return (int) (world_height / z);
     }
 
     public int getWorldCenterX() {
@@ -112,6 +160,7 @@ public final class WorldParameter implements Parcelable {
     //设置世界的可见范围
     public void setWorldVisibleRange(float left, float top, float right, float bottom) {
         world_visible_range.set(left, top, right, bottom);
+        onGeometryModify();
     }
 
     //相机视野范围
@@ -132,21 +181,29 @@ public final class WorldParameter implements Parcelable {
 
 
     public void setCamera(int x, int y) {
+        if (camera_x == x && camera_y == y) return;
         camera_x = x;
         camera_y = y;
-
+        onModify();
     }
 
     public void setCameraOffset(float dx, float dy) {
         camera_x += dx;
         camera_y += dy;
+        onModify();
     }
 
-    //相机的高度 - 还未实现
-    @Deprecated
+    /**
+     * 设置相机的高度,相机越高世界就越小.
+     * 世界的大小与相机的位置都以当前高度下的像素为单位,相机的位置需要由调用者同步修正
+     *
+     * @param z 相机的高度,1为原始大小
+     */
     public void setCameraZ(float z) {
+        if (z <= 0) return;
         camera_z = z;
         camera_size.set(0, 0, view_width, view_height);
+        onChange();
     }
 
     public float getCameraZ() {
@@ -180,19 +237,32 @@ public final class WorldParameter implements Parcelable {
 
     //相机范围限制
     public int getCameraRestrictLeft() {
-        return (int) (-this.world_visible_range.left * getViewWidth());
+        ensureRestrict();
+        return mRestrict.left;
     }
 
     public int getCameraRestrictTop() {
-        return (int) (-this.world_visible_range.top * getViewHeight());
+        ensureRestrict();
+        return mRestrict.top;
     }
 
     public int getCameraRestrictRight() {
-        return (int) (getWorldWidth() - getCameraWidth() + this.world_visible_range.right * getViewWidth());
+        ensureRestrict();
+        return mRestrict.right;
     }
 
     public int getCameraRestrictBottom() {
-        return (int) (getWorldHeight() - getCameraHeight() + this.world_visible_range.bottom * getViewHeight());
+        ensureRestrict();
+        return mRestrict.bottom;
+    }
+
+    private void ensureRestrict() {
+        if (mRestrictVersion == mGeometryVersion) return;
+        mRestrictVersion = mGeometryVersion;
+        mRestrict.set((int) (-this.world_visible_range.left * getViewWidth()),
+                (int) (-this.world_visible_range.top * getViewHeight()),
+                (int) (getWorldWidth() - getCameraWidth() + this.world_visible_range.right * getViewWidth()),
+                (int) (getWorldHeight() - getCameraHeight() + this.world_visible_range.bottom * getViewHeight()));
     }
 
     //修正相机的位置
@@ -215,6 +285,127 @@ public final class WorldParameter implements Parcelable {
     }
 
 
+    /**
+     * 以另一个相机高度观察同一个世界,相机覆盖的世界范围保持不变
+     *
+     * @param src 原始的世界参数
+     * @param z   新的相机高度
+     */
+    void set(WorldParameter src, float z) {
+        float scale = src.camera_z / z;
+        view_width = src.view_width;
+        view_height = src.view_height;
+        world_width = src.world_width;
+        world_height = src.world_height;
+        world_visible_range.set(src.world_visible_range);
+        camera_z = z;
+        camera_x = Math.round(src.camera_x * scale);
+        camera_y = Math.round(src.camera_y * scale);
+        camera_size.set(0, 0, src.camera_size.width() * scale, src.camera_size.height() * scale);
+        mFlag = src.mFlag;
+        onGeometryModify();
+    }
+
+    /**
+     * 获得当前参数的不可变快照,参数没有变化时返回同一个对象.需要在修改参数的线程(主线程)中调用
+     */
+    public WorldSnapshot snapshot() {
+        WorldSnapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.getVersion() != mVersion) {
+            snapshot = new WorldSnapshot(mVersion, view_width, view_height, world_width, world_height,
+                    world_visible_range.left, world_visible_range.top, world_visible_range.right, world_visible_range.bottom,
+                    camera_x, camera_y, camera_z, camera_size.width(), camera_size.height());
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * 世界坐标(原始大小,相机高度为1)到屏幕坐标(View中的位置)的变换.
+     * 返回的对象在参数变化时会被更新,不要修改它
+     */
+    public Matrix getWorldToScreenMatrix() {
+        ensureMatrix();
+        return mWorldToScreen;
+    }
+
+    /**
+     * 屏幕坐标到世界坐标(原始大小)的变换,返回的对象不要修改
+     */
+    public Matrix getScreenToWorldMatrix() {
+        ensureMatrix();
+        return mScreenToWorld;
+    }
+
+    /**
+     * 将世界坐标中的点批量转换为屏幕坐标
+     *
+     * @param pts 点的数组 [x0, y0, x1, y1, ...],转换的结果写回数组中
+     */
+    public void mapWorldToScreen(float[] pts) {
+        ensureMatrix();
+        mWorldToScreen.mapPoints(pts);
+    }
+
+    /**
+     * 将世界坐标中的点批量转换为屏幕坐标
+     *
+     * @param dst        接收结果的数组
+     * @param dstIndex   结果写入的起始位置
+     * @param src        点的数组 [x0, y0, x1, y1, ...]
+     * @param srcIndex   读取的起始位置
+     * @param pointCount 转换的点的数量
+     */
+    public void mapWorldToScreen(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount) {
+        ensureMatrix();
+        mWorldToScreen.mapPoints(dst, dstIndex, src, srcIndex, pointCount);
+    }
+
+    /**
+     * 将屏幕坐标中的点批量转换为世界坐标
+     *
+     * @param pts 点的数组 [x0, y0, x1, y1, ...],转换的结果写回数组中
+     */
+    public void mapScreenToWorld(float[] pts) {
+        ensureMatrix();
+        mScreenToWorld.mapPoints(pts);
+    }
+
+    public void mapScreenToWorld(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount) {
+        ensureMatrix();
+        mScreenToWorld.mapPoints(dst, dstIndex, src, srcIndex, pointCount);
+    }
+
+    //将世界中的区域转换为屏幕中的区域
+    public void mapWorldToScreen(RectF rect) {
+        ensureMatrix();
+        mWorldToScreen.mapRect(rect);
+    }
+
+    //将屏幕中的区域转换为世界中的区域
+    public void mapScreenToWorld(RectF rect) {
+        ensureMatrix();
+        mScreenToWorld.mapRect(rect);
+    }
+
+    private void ensureMatrix() {
+        if (mMatrixVersion == mVersion) return;
+        mMatrixVersion = mVersion;
+        //屏幕坐标 = 世界坐标 / z - 相机位置
+        mWorldToScreen.setScale(1 / camera_z, 1 / camera_z);
+        mWorldToScreen.postTranslate(-getCameraLeft(), -getCameraTop());
+        //世界坐标 = (屏幕坐标 + 相机位置) * z
+        mScreenToWorld.setTranslate(getCameraLeft(), getCameraTop());
+        mScreenToWorld.postScale(camera_z, camera_z);
+    }
+
+    /**
+     * 参数的版本,每次修改之后都会增加
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -0,0 +1,124 @@
+package com.acap.world;
+
+/**
+ * <pre>
+ * Tip:
+ *      世界参数的不可变快照
+ *      {@link WorldParameter} 只能在主线程中读写,缓冲构建线程与其它线程中的监听器使用快照读取世界参数,
+ *      快照中的所有值来自同一个时刻,不需要加锁.
+ *
+ *      每一次修改世界参数都会产生新的版本,版本相同的快照内容一定相同,可以用来跳过重复的工作:
+ *
+ *      WorldSnapshot snapshot = view.getWorldSnapshot();
+ *      if (snapshot.getVersion() == mLastVersion) return;
+ *
+ * Created by ACap on 2021/4/26 11:20
+ * </pre>
+ */
+public final class WorldSnapshot {
+
+    private final long mVersion;
+    private final int mViewWidth, mViewHeight;
+    private final int mWorldWidth, mWorldHeight;
+    private final float mVisibleLeft, mVisibleTop, mVisibleRight, mVisibleBottom;
+    private final int mCameraX, mCameraY;
+    private final float mCameraZ;
+    private final float mCameraWidth, mCameraHeight;
+
+    WorldSnapshot(long version, int viewWidth, int viewHeight, int worldWidth, int worldHeight,
+                  float visibleLeft, float visibleTop, float visibleRight, float visibleBottom,
+                  int cameraX, int cameraY, float cameraZ, float cameraWidth, float cameraHeight) {
+        mVersion = version;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mWorldWidth = worldWidth;
+        mWorldHeight = worldHeight;
+        mVisibleLeft = visibleLeft;
+        mVisibleTop = visibleTop;
+        mVisibleRight = visibleRight;
+        mVisibleBottom = visibleBottom;
+        mCameraX = cameraX;
+        mCameraY = cameraY;
+        mCameraZ = cameraZ;
+        mCameraWidth = cameraWidth;
+        mCameraHeight = cameraHeight;
+    }
+
+    /**
+     * 快照的版本,世界参数每次修改之后版本都会增加
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getViewWidth() {
+        return mViewWidth;
+    }
+
+    public int getViewHeight() {
+        return mViewHeight;
+    }
+
+    //当前相机高度下世界的大小
+    public int getWorldWidth() {
+        return getWorldWidth(mCameraZ);
+    }
+
+    public int getWorldHeight() {
+        return getWorldHeight(mCameraZ);
+    }
+
+    //相机在指定高度时世界的大小
+    public int getWorldWidth(float z) {
+        return (int) (mWorldWidth / z);
+    }
+
+    public int getWorldHeight(float z) {
+        return (int) (mWorldHeight / z);
+    }
+
+    public float getCameraZ() {
+        return mCameraZ;
+    }
+
+    public float getCameraWidth() {
+        return mCameraWidth;
+    }
+
+    public float getCameraHeight() {
+        return mCameraHeight;
+    }
+
+    public float getCameraLeft() {
+        return mCameraX;
+    }
+
+    public float getCameraTop() {
+        return mCameraY;
+    }
+
+    public float getCameraRight() {
+        return mCameraX + mCameraWidth;
+    }
+
+    public float getCameraBottom() {
+        return mCameraY + mCameraHeight;
+    }
+
+    //相机范围限制
+    public int getCameraRestrictLeft() {
+        return (int) (-mVisibleLeft * mViewWidth);
+    }
+
+    public int getCameraRestrictTop() {
+        return (int) (-mVisibleTop * mViewHeight);
+    }
+
+    public int getCameraRestrictRight() {
+        return (int) (getWorldWidth() - mCameraWidth + mVisibleRight * mViewWidth);
+    }
+
+    public int getCameraRestrictBottom() {
+        return (int) (getWorldHeight() - mCameraHeight + mVisibleBottom * mViewHeight);
+    }
+}
@@ -2,14 +2,20 @@ package com.acap.world;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Build;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewConfiguration;
-import android.widget.Scroller;
+import android.widget.OverScroller;
+
+import java.util.concurrent.Executor;
 
 
 /**
@@ -55,17 +61,48 @@ public class WorldView extends View {
 
     private int flag;
     private WorldParameter mWorldParams;
+    //主线程中最近一次发布的世界参数快照,供其它线程读取
+    private volatile WorldSnapshot mWorldSnapshot;
 
     private GestureDetector mGestureDetector;
     private GestureListener mGestureListener;
+    private ScaleGestureDetector mScaleGestureDetector;
+    //用户正在使用双指缩放
+    private boolean mIsScaling = false;
     private int mTouchSlop;//被认为是滑动的最小位移距离
     private int mTouchSlopSquare; //被认为是滑动的最小位移距离
-
-    private Scroller mScroller;
+    private int mMinFlingVelocity;//被认为是甩动的最小速度
+    private int mMaxFlingVelocity;//甩动的最大速度
+    //计算甩动的速度,包含每个事件中的历史采样点
+    private VelocityTracker mVelocityTracker;
+    //这次触摸是否拖动过世界/是否进行过双指缩放
+    private boolean mHasDragged = false;
+    private boolean mHasScaled = false;
+
+    private OverScroller mScroller;
+    //合并所有的重绘请求,每一帧最多绘制一次
+    private FrameScheduler mFrameScheduler;
 
     private int TIME_FLING_ANIM = 1000;  //甩动动画的时间
 
+    //当前的滚动是否为甩动
+    private boolean mIsFlinging = false;
+    //甩动时是否越过世界的边缘后回弹
+    private boolean mIsFlingOverScroll = false;
+    private float mFlingFriction = ViewConfiguration.getScrollFriction();
+    //甩动时相机的范围,以及允许越界的距离
+    private final Rect mFlingBounds = new Rect();
+    private int mFlingOverX, mFlingOverY;
+
+    //相机高度的范围
+    private float mMinCameraZ = 1f;
+    private float mMaxCameraZ = 1f;
+
     private OnWorldCameraChangeListener mOnWorldCameraChangeListener;
+    private OnWorldChangeListener mCameraChangeAdapter;
+    private final WorldChangeDispatcher mWorldChangeDispatcher = new WorldChangeDispatcher();
+    //世界中物体的适配器
+    private WorldAdapter<?> mAdapter;
 
     /**
      * 如果用户正在拖动这个View，则为True
@@ -102,25 +139,100 @@ public class WorldView extends View {
 
     private void init(Context context, AttributeSet attrs, int defStyleAttr) {
         mWorldParams = new WorldParameter();
+        mWorldSnapshot = mWorldParams.snapshot();
         mGestureListener = new GestureListener();
         mGestureDetector = new GestureDetector(context, mGestureListener);
-        mScroller = new Scroller(context);
+        mScaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureListener());
+        //快速缩放(双击后拖动)会与双击事件冲突
+        if (Build.VERSION.SDK_INT >= 19) mScaleGestureDetector.setQuickScaleEnabled(false);
+        mScroller = new OverScroller(context);
+        mFrameScheduler = new FrameScheduler(this);
+        mScroller.setFriction(mFlingFriction);
         setLongPress(false);
 
         int touchSlop;
         if (context == null) {
             touchSlop = ViewConfiguration.getTouchSlop();
+            mMinFlingVelocity = ViewConfiguration.getMinimumFlingVelocity();
+            mMaxFlingVelocity = ViewConfiguration.getMaximumFlingVelocity();
         } else {
             final ViewConfiguration configuration = ViewConfiguration.get(context);
             touchSlop = configuration.getScaledTouchSlop();
+            mMinFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+            mMaxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
         }
         mTouchSlop = touchSlop;
         mTouchSlopSquare = touchSlop * touchSlop;
     }
 
-    //设置世界变化监听
+    //设置世界变化监听,只在相机或者世界的参数发生变化之后的绘制中回调
     public void setOnWorldCameraChangeListener(OnWorldCameraChangeListener mOnWorldCameraChangeListener) {
         this.mOnWorldCameraChangeListener = mOnWorldCameraChangeListener;
+        if (mCameraChangeAdapter != null) mWorldChangeDispatcher.remove(mCameraChangeAdapter);
+        mCameraChangeAdapter = null;
+        if (mOnWorldCameraChangeListener != null) {
+            mCameraChangeAdapter = event -> this.mOnWorldCameraChangeListener.onChange(getWorldParams());
+            mWorldChangeDispatcher.add(mCameraChangeAdapter, 0, null);
+        }
+    }
+
+    /**
+     * 添加相机变化的监听,在主线程中回调,每一帧最多回调一次
+     */
+    public void addOnWorldChangeListener(OnWorldChangeListener listener) {
+        addOnWorldChangeListener(listener, 0, null);
+    }
+
+    /**
+     * 添加相机变化的监听,同一个监听器重复添加时使用新的配置
+     *
+     * @param listener    监听器
+     * @param minInterval 两次回调之间的最小间隔(毫秒),间隔之内的变化会被合并到间隔结束时回调
+     * @param executor    执行回调的线程,为null时在主线程中回调
+     */
+    public void addOnWorldChangeListener(OnWorldChangeListener listener, long minInterval, Executor executor) {
+        if (listener == null) return;
+        mWorldChangeDispatcher.add(listener, minInterval, executor);
+        postInvalidateWorld();
+    }
+
+    public void removeOnWorldChangeListener(OnWorldChangeListener listener) {
+        mWorldChangeDispatcher.remove(listener);
+    }
+
+    /**
+     * 设置世界中物体的适配器,世界的大小由适配器中物体的总长度决定,
+     * 只有相机附近的物体会被绑定,可以通过 {@link WorldAdapter#getAttachedItem(int)} 访问.
+     * 设置之后不再调用 {@link #onMeasureWorldSize(WorldParameter, int, int)}.
+     * 在 {@link WorldBufferView} 中需要配合 {@link WorldBufferView#BUFFER_MODE_TILE} 或
+     * {@link WorldBufferView#BUFFER_MODE_SCROLL} 使用,其它模式的缓冲覆盖整个世界,内存仍然随世界的大小增长
+     *
+     * @param adapter 为null时移除适配器
+     */
+    public void setAdapter(WorldAdapter<?> adapter) {
+        if (mAdapter == adapter) return;
+        if (mAdapter != null) mAdapter.detach();
+        mAdapter = adapter;
+        if (mAdapter != null) mAdapter.attach(this);
+        measureWorldSize();
+    }
+
+    public WorldAdapter<?> getAdapter() {
+        return mAdapter;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mFrameScheduler.start();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        //不在窗口中的View不再注册帧回调,也不再延迟通知监听器
+        mFrameScheduler.stop();
+        mWorldChangeDispatcher.cancelPending();
     }
 
     @Override
@@ -135,7 +247,7 @@ public class WorldView extends View {
         final int height = getHeight();
 
         mWorldParams.setViewSize(width, height);
-        onMeasureWorldSize(mWorldParams, width, height);
+        dispatchMeasureWorldSize(width, height);
 
         if (!mWorldParams.isInitWorldSize()) {
             mWorldParams.setWorldSize(width, height);
@@ -153,11 +265,23 @@ public class WorldView extends View {
     }
 
 
+    //判断缩放是否启用
+    protected boolean isScaleEnable() {
+        return mMaxCameraZ > mMinCameraZ;
+    }
+
+    /**
+     * 用户是否正在使用双指缩放
+     */
+    public boolean isScaling() {
+        return mIsScaling;
+    }
+
     @Override
     public boolean dispatchTouchEvent(MotionEvent event) {
         boolean isScrollVerticalEnable = isScrollVerticalEnable();
         boolean isScrollHorizontalEnable = isScrollHorizontalEnable();
-        if (!isScrollVerticalEnable && !isScrollHorizontalEnable) {
+        if (!isScrollVerticalEnable && !isScrollHorizontalEnable && !isScaleEnable()) {
             return super.dispatchTouchEvent(event);
         }
 
@@ -199,35 +323,20 @@ public class WorldView extends View {
             case MotionEvent.ACTION_MOVE:
                 float scrollX = mFocusX - mLastFocusX;
                 float scrollY = mFocusY - mLastFocusY;
-                float disX = mFocusX - mDownFocusX;
-                float disY = mFocusY - mDownFocusY;
 
-                if (mIsMonitorDragged) {
-                    float absY = Math.abs(disY);
-                    float absX = Math.abs(disX);
-                    if (isScrollVerticalEnable && isScrollHorizontalEnable) {
-                        float distance = absY * absX;
-                        if (distance > mTouchSlopSquare) {
-                            mIsMonitorDragged = false;
-                            mIsBeingDragged = true;
-                        }
-                    } else if (isScrollVerticalEnable) {//只有纵向滚动
-                        if (absX > mTouchSlop) {
-                            mIsMonitorDragged = false;
-                            mIsBeingDragged = false;
-                        } else if (absY > mTouchSlop) {
-                            mIsMonitorDragged = false;
-                            mIsBeingDragged = true;
-                        }
-                    } else if (isScrollHorizontalEnable) {//只有横向滚动
-                        if (absY > mTouchSlop) {
-                            mIsMonitorDragged = false;
-                            mIsBeingDragged = false;
-                        } else if (absX > mTouchSlop) {
-                            mIsMonitorDragged = false;
-                            mIsBeingDragged = true;
-                        }
+                //高采样率的屏幕会将多个采样点合并到一个事件中,按照时间顺序检查每一个采样点,
+                //使用第一个超出阈值的采样点判断拖动的方向
+                final int historySize = event.getHistorySize();
+                for (int h = 0; h < historySize && mIsMonitorDragged; h++) {
+                    float sumHX = 0, sumHY = 0;
+                    for (int i = 0; i < count; i++) {
+                        sumHX += event.getHistoricalX(i, h);
+                        sumHY += event.getHistoricalY(i, h);
                     }
+                    checkDragSlop(sumHX / count - mDownFocusX, sumHY / count - mDownFocusY, isScrollVerticalEnable, isScrollHorizontalEnable);
+                }
+                if (mIsMonitorDragged) {
+                    checkDragSlop(mFocusX - mDownFocusX, mFocusY - mDownFocusY, isScrollVerticalEnable, isScrollHorizontalEnable);
                 }
 
                 if (mIsBeingDragged) {  //计算动态退出滑动的状态
@@ -247,6 +356,12 @@ public class WorldView extends View {
                 break;
         }
 
+        //第二根手指按下时开始接管事件,避免父控件拦截缩放手势
+        if (isScaleEnable() && event.getPointerCount() > 1) {
+            mIsMonitorDragged = false;
+            mIsBeingDragged = true;
+        }
+
         boolean processed = mIsMonitorDragged || mIsBeingDragged;
 
         if (getParent() != null) {
@@ -257,20 +372,62 @@ public class WorldView extends View {
         return processed;
     }
 
+    //判断手指的位移是否超出了拖动的阈值
+    private void checkDragSlop(float disX, float disY, boolean isScrollVerticalEnable, boolean isScrollHorizontalEnable) {
+        float absY = Math.abs(disY);
+        float absX = Math.abs(disX);
+        if (isScrollVerticalEnable && isScrollHorizontalEnable) {
+            float distance = absY * absX;
+            if (distance > mTouchSlopSquare) {
+                mIsMonitorDragged = false;
+                mIsBeingDragged = true;
+            }
+        } else if (isScrollVerticalEnable) {//只有纵向滚动
+            if (absX > mTouchSlop) {
+                mIsMonitorDragged = false;
+                mIsBeingDragged = false;
+            } else if (absY > mTouchSlop) {
+                mIsMonitorDragged = false;
+                mIsBeingDragged = true;
+            }
+        } else if (isScrollHorizontalEnable) {//只有横向滚动
+            if (absY > mTouchSlop) {
+                mIsMonitorDragged = false;
+                mIsBeingDragged = false;
+            } else if (absX > mTouchSlop) {
+                mIsMonitorDragged = false;
+                mIsBeingDragged = true;
+            }
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         boolean isScrollVerticalEnable = isScrollVerticalEnable();
         boolean isScrollHorizontalEnable = isScrollHorizontalEnable();
-        if (!isScrollVerticalEnable && !isScrollHorizontalEnable) {
+        boolean isScaleEnable = isScaleEnable();
+        if (!isScrollVerticalEnable && !isScrollHorizontalEnable && !isScaleEnable) {
             return false;
         }
+        if (isScaleEnable) {
+            mScaleGestureDetector.onTouchEvent(event);
+        }
+
+        //速度追踪会读取事件中所有的历史采样点
+        if (mVelocityTracker == null) mVelocityTracker = VelocityTracker.obtain();
+        mVelocityTracker.addMovement(event);
 
         int action = event.getAction();
         switch (action) {
             case MotionEvent.ACTION_DOWN:
+                mHasDragged = false;
+                mHasScaled = false;
+                //按下时停止甩动
+                if (isFlinging()) onFlingCancel();
                 if (!mScroller.isFinished()) {
                     mScroller.abortAnimation();
                 }
+                mIsFlinging = false;
                 mGestureDetector.onTouchEvent(event);
                 break;
             case MotionEvent.ACTION_MOVE:
@@ -283,6 +440,21 @@ public class WorldView extends View {
             case MotionEvent.ACTION_CANCEL:
                 mGestureDetector.onTouchEvent(event);
                 mGestureListener.setPressCancel();
+                if (action == MotionEvent.ACTION_UP && mHasDragged && !mHasScaled) {
+                    final int pointerId = event.getPointerId(0);
+                    mVelocityTracker.computeCurrentVelocity(1000, mMaxFlingVelocity);
+                    float velocityX = mVelocityTracker.getXVelocity(pointerId);
+                    float velocityY = mVelocityTracker.getYVelocity(pointerId);
+                    if (Math.abs(velocityX) > mMinFlingVelocity || Math.abs(velocityY) > mMinFlingVelocity) {
+                        onFling(velocityX, velocityY);
+                        //手指的速度与相机移动的方向相反
+                        fling((int) -velocityX, (int) -velocityY);
+                    }
+                }
+                //拖动到世界边缘之外并且没有甩动时回弹
+                if (mIsFlingOverScroll && mScroller.isFinished()) springBack();
+                mVelocityTracker.recycle();
+                mVelocityTracker = null;
                 break;
 
         }
@@ -299,15 +471,38 @@ public class WorldView extends View {
         return getWorldParams().getWorldWidth();
     }
 
-    @Override
-    public void computeScroll() {
-        super.computeScroll();
+    /**
+     * 每一帧开始时由 {@link FrameScheduler} 调用,推进相机的滚动动画
+     */
+    void onFrame(long frameTimeNanos) {
         if (mScroller.computeScrollOffset()) {//判断Scroller是否执行完毕
             scrollTo(mScroller.getCurrX(), mScroller.getCurrY());
-            postInvalidateOnAnimation(this);
+            postInvalidateWorld();
         }
     }
 
+    /**
+     * 请求在下一帧重新绘制世界,可以在任意线程中调用.
+     * 同一帧之内的多次请求会被合并为一次,没有请求时不会产生任何帧
+     */
+    public void postInvalidateWorld() {
+        mFrameScheduler.requestFrame();
+    }
+
+    /**
+     * 在一段时间之后重新绘制世界,多次调用时只保留最后一次
+     */
+    public void postInvalidateWorldDelayed(long delay) {
+        mFrameScheduler.requestFrameDelayed(delay);
+    }
+
+    /**
+     * 在下一帧开始时在主线程中执行任务,同一帧的任务在绘制之前依次执行
+     */
+    final void postOnFrame(Runnable runnable) {
+        mFrameScheduler.post(runnable);
+    }
+
     @Override
     public void scrollTo(int x, int y) {
         WorldParameter world = getWorldParams();
@@ -321,6 +516,89 @@ public class WorldView extends View {
     }
 
 
+    /**
+     * 设置相机高度的范围,默认为[1,1]即不允许缩放
+     *
+     * @param min 最小高度,小于1时可以放大世界
+     * @param max 最大高度,大于1时可以缩小世界
+     */
+    public void setCameraZRange(float min, float max) {
+        if (min <= 0 || max < min) return;
+        mMinCameraZ = min;
+        mMaxCameraZ = max;
+        setCameraZ(getWorldParams().getCameraZ());
+    }
+
+    public float getMinCameraZ() {
+        return mMinCameraZ;
+    }
+
+    public float getMaxCameraZ() {
+        return mMaxCameraZ;
+    }
+
+    public float getCameraZ() {
+        return getWorldParams().getCameraZ();
+    }
+
+    /**
+     * 以View的中心为焦点设置相机的高度
+     *
+     * @param z 相机的高度,相机越高世界就越小
+     */
+    public void setCameraZ(float z) {
+        setCameraZ(z, getWidth() / 2f, getHeight() / 2f);
+    }
+
+    /**
+     * 设置相机的高度,焦点对应的世界位置在屏幕上保持不动
+     *
+     * @param z      相机的高度,会被限制在 {@link #setCameraZRange(float, float)} 的范围内
+     * @param focusX 焦点在View中的位置x
+     * @param focusY 焦点在View中的位置y
+     */
+    public void setCameraZ(float z, float focusX, float focusY) {
+        z = Math.max(mMinCameraZ, Math.min(z, mMaxCameraZ));
+        WorldParameter world = getWorldParams();
+        float oldZ = world.getCameraZ();
+        if (z == oldZ) return;
+        if (!mScroller.isFinished()) {
+            mScroller.abortAnimation();
+        }
+
+        //焦点在原始大小下的世界坐标
+        float x = (getScrollX() + focusX) * oldZ;
+        float y = (getScrollY() + focusY) * oldZ;
+        world.setCameraZ(z);
+        onCameraZChange(oldZ, z);
+        scrollTo(Math.round(x / z - focusX), Math.round(y / z - focusY));
+        postInvalidateWorld();
+    }
+
+    /**
+     * 双指缩放开始时回调
+     *
+     * @param focusX 焦点在View中的位置x
+     * @param focusY 焦点在View中的位置y
+     */
+    protected void onScaleBegin(float focusX, float focusY) {
+    }
+
+    /**
+     * 双指缩放结束时回调,缩放期间的耗时操作可以推迟到这里进行
+     */
+    protected void onScaleEnd() {
+    }
+
+    /**
+     * 当相机的高度变化时回调,此时相机的位置还未修正
+     *
+     * @param oldZ 变化前的高度
+     * @param newZ 变化后的高度
+     */
+    protected void onCameraZChange(float oldZ, float newZ) {
+    }
+
     /**
      * 平滑的滚动到某个位置
      *
@@ -331,6 +609,7 @@ public class WorldView extends View {
         if (!mScroller.isFinished()) {
             mScroller.abortAnimation();
         }
+        mIsFlinging = false;
         int duration = TIME_FLING_ANIM;
 
         WorldParameter world = getWorldParams();
@@ -345,16 +624,142 @@ public class WorldView extends View {
 
         mScroller.startScroll(getScrollX(), getScrollY(), trim_dx, trim_dy, duration);
 
-        postInvalidateOnAnimation(this);
+        postInvalidateWorld();
+    }
+
+    /**
+     * 以指定的速度甩动相机,相机逐渐减速并停止在 {@link WorldParameter#getCameraRestrictLeft()} 等限制的范围内.
+     * 减速的快慢由 {@link #setFlingFriction(float)} 决定,停止的位置在甩动开始时即可通过 {@link #getFlingFinalX()} 获得
+     *
+     * @param velocityX 相机移动的速度x(像素/秒),与手指移动的方向相反
+     * @param velocityY 相机移动的速度y(像素/秒)
+     */
+    public void fling(int velocityX, int velocityY) {
+        if (!mScroller.isFinished()) {
+            mScroller.abortAnimation();
+        }
+        if (!isScrollHorizontalEnable()) velocityX = 0;
+        if (!isScrollVerticalEnable()) velocityY = 0;
+        if (velocityX == 0 && velocityY == 0) {
+            mIsFlinging = false;
+            return;
+        }
+
+        computeFlingBounds();
+        mScroller.fling(getScrollX(), getScrollY(), velocityX, velocityY,
+                mFlingBounds.left, mFlingBounds.right, mFlingBounds.top, mFlingBounds.bottom, mFlingOverX, mFlingOverY);
+        mIsFlinging = true;
+        onFlingStart(mScroller.getFinalX(), mScroller.getFinalY());
+        postInvalidateWorld();
+    }
+
+    /**
+     * 设置甩动的摩擦系数,默认为 {@link ViewConfiguration#getScrollFriction()},值越大甩动的距离越短
+     */
+    public void setFlingFriction(float friction) {
+        if (friction <= 0) return;
+        mFlingFriction = friction;
+        mScroller.setFriction(friction);
+    }
+
+    public float getFlingFriction() {
+        return mFlingFriction;
+    }
+
+    /**
+     * 设置甩动时是否允许越过世界的边缘后回弹,默认关闭.
+     * 开启之后甩动停止在世界的边缘,越界的距离由 {@link WorldParameter#setWorldVisibleRange(float, float, float, float)} 决定,
+     * 拖动到边缘之外松手时相机也会回弹到边缘
+     */
+    public void setFlingOverScroll(boolean enable) {
+        mIsFlingOverScroll = enable;
+    }
+
+    public boolean isFlingOverScroll() {
+        return mIsFlingOverScroll;
+    }
+
+    /**
+     * 相机是否正在甩动
+     */
+    public boolean isFlinging() {
+        return mIsFlinging && !mScroller.isFinished();
+    }
+
+    /**
+     * 甩动停止时相机的位置x,没有甩动时为相机当前的位置
+     */
+    public int getFlingFinalX() {
+        return isFlinging() ? mScroller.getFinalX() : getScrollX();
+    }
+
+    /**
+     * 甩动停止时相机的位置y,没有甩动时为相机当前的位置
+     */
+    public int getFlingFinalY() {
+        return isFlinging() ? mScroller.getFinalY() : getScrollY();
+    }
+
+    /**
+     * 甩动开始时回调,此时已经能够确定相机停止的位置
+     *
+     * @param finalX 相机停止的位置x
+     * @param finalY 相机停止的位置y
+     */
+    protected void onFlingStart(int finalX, int finalY) {
+    }
+
+    /**
+     * 甩动被用户按下打断时回调,此时相机不会再到达甩动停止的位置
+     */
+    protected void onFlingCancel() {
+    }
+
+    //相机在世界边缘之外时回弹到边缘
+    private void springBack() {
+        computeFlingBounds();
+        if (mScroller.springBack(getScrollX(), getScrollY(), mFlingBounds.left, mFlingBounds.right, mFlingBounds.top, mFlingBounds.bottom)) {
+            mIsFlinging = false;
+            postInvalidateWorld();
+        }
+    }
+
+    //计算甩动时相机的范围,开启越界回弹时相机停止在世界的边缘,可视范围之内的部分作为越界的距离
+    private void computeFlingBounds() {
+        WorldParameter world = getWorldParams();
+        int minX = world.getCameraRestrictLeft();
+        int minY = world.getCameraRestrictTop();
+        int maxX = Math.max(minX, world.getCameraRestrictRight());
+        int maxY = Math.max(minY, world.getCameraRestrictBottom());
+        if (!isScrollHorizontalEnable()) minX = maxX = getScrollX();
+        if (!isScrollVerticalEnable()) minY = maxY = getScrollY();
+        mFlingOverX = mFlingOverY = 0;
+
+        if (mIsFlingOverScroll) {
+            int edgeMinX = Math.min(Math.max(minX, 0), maxX);
+            int edgeMinY = Math.min(Math.max(minY, 0), maxY);
+            int edgeMaxX = Math.max(edgeMinX, Math.min(maxX, world.getWorldWidth() - (int) world.getCameraWidth()));
+            int edgeMaxY = Math.max(edgeMinY, Math.min(maxY, world.getWorldHeight() - (int) world.getCameraHeight()));
+            mFlingOverX = Math.max(edgeMinX - minX, maxX - edgeMaxX);
+            mFlingOverY = Math.max(edgeMinY - minY, maxY - edgeMaxY);
+            minX = edgeMinX;
+            minY = edgeMinY;
+            maxX = edgeMaxX;
+            maxY = edgeMaxY;
+        }
+        mFlingBounds.set(minX, minY, maxX, maxY);
     }
 
 
     @Override
     protected final void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        WorldSnapshot snapshot = getWorldSnapshot();
+        //绘制之前绑定进入相机附近的物体
+        if (mAdapter != null) mAdapter.layout(mWorldParams);
         onDrawWorld(canvas);
 
-        if (mOnWorldCameraChangeListener != null) mOnWorldCameraChangeListener.onChange(getWorldParams());
+        mWorldChangeDispatcher.dispatch(snapshot);
     }
 
 
@@ -379,15 +784,25 @@ public class WorldView extends View {
      */
     protected void measureWorldSize() {
         if (getWidth() > 0 && getHeight() > 0) {
-            onMeasureWorldSize(mWorldParams, getWidth(), getHeight());
-            postInvalidateOnAnimation(this);
+            dispatchMeasureWorldSize(getWidth(), getHeight());
+            postInvalidateWorld();
         } else {//重新测量
             requestLayout();
         }
     }
 
+    //设置了适配器时世界的大小由适配器决定,不依赖子类的实现
+    private void dispatchMeasureWorldSize(int width, int height) {
+        if (mAdapter != null) {
+            mAdapter.measure(mWorldParams, width, height);
+        } else {
+            onMeasureWorldSize(mWorldParams, width, height);
+        }
+    }
+
     /**
-     * 当测量到了初始世界的宽度和高度时，用于初始化真实世界的大小
+     * 当测量到了初始世界的宽度和高度时，用于初始化真实世界的大小.
+     * 设置了适配器时不会调用,世界的大小由 {@link WorldAdapter} 决定
      *
      * @param world  世界参数
      * @param width  View的大小
@@ -411,6 +826,7 @@ public class WorldView extends View {
         WorldSaveState ss = (WorldSaveState) state;
         super.onRestoreInstanceState(ss.getSuperState());
         mWorldParams = ss.read();
+        mWorldSnapshot = mWorldParams.snapshot();
         onRestoreWorldState(ss);
     }
 
@@ -433,10 +849,24 @@ public class WorldView extends View {
     }
 
 
+    /**
+     * 获得世界参数,只能在主线程中读写.其它线程中使用 {@link #getWorldSnapshot()}
+     */
     public WorldParameter getWorldParams() {
         return mWorldParams;
     }
 
+    /**
+     * 获得世界参数的不可变快照,可以在任意线程中调用.
+     * 在主线程中调用时返回最新的参数,其它线程中返回主线程最近一次发布的快照(最迟为上一次绘制时的参数)
+     */
+    public WorldSnapshot getWorldSnapshot() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mWorldSnapshot = mWorldParams.snapshot();
+        }
+        return mWorldSnapshot;
+    }
+
     /**
      * 设置长按功能启用状态，当长按功能启用并被触发之后将不响应后续事件
      * ，该功能默认关闭
@@ -527,7 +957,6 @@ public class WorldView extends View {
     }
 
     private final class GestureListener implements GestureDetector.OnGestureListener, GestureDetector.OnDoubleTapListener {
-        private float speed = 1f - 0.618f;
 
         /**
          * 用户的触摸状态，当用户触摸View并且未滑动时为True
@@ -549,14 +978,24 @@ public class WorldView extends View {
             }
         }
 
-        //获得触摸点对应在世界中的位置
+        private final float[] mPoint = new float[2];
+
+        //获得触摸点对应在世界中的位置(原始大小下的坐标)
         private float getWorldX(MotionEvent e) {
-            return e.getX() + getWorldParams().getCameraLeft();
+            mapToWorld(e);
+            return mPoint[0];
         }
 
-        //获得触摸点对应在世界中的位置
+        //获得触摸点对应在世界中的位置(原始大小下的坐标)
         private float getWorldY(MotionEvent e) {
-            return e.getY() + getWorldParams().getCameraTop();
+            mapToWorld(e);
+            return mPoint[1];
+        }
+
+        private void mapToWorld(MotionEvent e) {
+            mPoint[0] = e.getX();
+            mPoint[1] = e.getY();
+            getWorldParams().mapScreenToWorld(mPoint);
         }
 
         @Override
@@ -603,6 +1042,7 @@ public class WorldView extends View {
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
             if (mIsBeingDragged) {
                 setPressCancel();
+                mHasDragged = true;
                 scrollTo((int) (getScrollX() + distanceX), (int) (getScrollY() + distanceY));
             }
             return true;
@@ -610,25 +1050,46 @@ public class WorldView extends View {
 
         @Override
         public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
-            WorldView.this.onFling(velocityX, velocityY);
-            smoothScrollTo((int) (getScrollX() - velocityX * speed), (int) (getScrollY() - velocityY * speed));
+            //甩动由 onTouchEvent 中的速度追踪处理
             return true;
         }
     }
 
 
+    private final class ScaleGestureListener implements ScaleGestureDetector.OnScaleGestureListener {
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            if (!isScaleEnable()) return false;
+            mIsScaling = true;
+            mHasScaled = true;
+            mGestureListener.setPressCancel();
+            if (!mScroller.isFinished()) {
+                mScroller.abortAnimation();
+            }
+            WorldView.this.onScaleBegin(detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            //手指张开时放大世界,即降低相机
+            setCameraZ(getCameraZ() / detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+            mIsScaling = false;
+            WorldView.this.onScaleEnd();
+            postInvalidateWorld();
+        }
+    }
+
     /**
      * 获得两点间的距离
      */
     private static final double getDistance(double x1, double y1, double x2, double y2) {
         return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
     }
-
-    private static void postInvalidateOnAnimation(View view) {
-        if (Build.VERSION.SDK_INT >= 16) {
-            view.postInvalidateOnAnimation();
-        } else {
-            view.postInvalidate();
-        }
-    }
 }
\ No newline at end of file
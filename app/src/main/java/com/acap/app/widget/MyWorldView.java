@@ -1,19 +1,21 @@
 package com.acap.app.widget;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
-import androidx.core.view.ViewCompat;
 import androidx.viewpager.widget.ViewPager;
 
 import com.acap.app.R;
@@ -23,9 +25,16 @@ import com.acap.toolkit.constant.TimeConstants;
 import com.acap.toolkit.phone.ScreenUtils;
 import com.acap.toolkit.transform.TimeUtils;
 import com.acap.toolkit.view.XPaint;
+import com.acap.world.DiskTileCache;
+import com.acap.world.RenderToken;
+import com.acap.world.WorldGridIndex;
 import com.acap.world.WorldBufferView;
 import com.acap.world.WorldParameter;
+import com.acap.world.WorldSnapshot;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,15 +64,21 @@ public class MyWorldView extends WorldBufferView {
     }
 
 
+    private static final String LAYER_BACKGROUND = "background";
+    private static final String LAYER_TEMPERATURE = "temperature";
+
     private ResourceUtils.BitmapCache mBitmapCache = ResourceUtils.getBitmapCache();
+    //数据中用到的图标,在主线程中解码之后整体替换,缓冲构建线程中只读取
+    private volatile SparseArray<Bitmap> mIcons = new SparseArray<>();
     private ResourceUtils.DrawableCache mDrawableCache = ResourceUtils.getDrawableCache();
     private int mWidth_Tab = ScreenUtils.dip2px(60);
     private int mSize_TranslateBackground = ScreenUtils.dip2px(10);
     private List<Tab> mData;
-
-    private XPaint mPaint = new XPaint();
-    private Path mPathTem = new Path();//温度曲线
-    private Path mPathBackground = new Path();//背景曲线
+    //Tab的空间索引,数据变化时整体替换,缓冲构建线程中只读取
+    private volatile WorldGridIndex<Tab> mTabIndex;
+    //曲线在数据变化时整体替换,缓冲构建线程中只读取
+    private volatile Path mPathTem = new Path();//温度曲线
+    private volatile Path mPathBackground = new Path();//背景曲线
 
     //今日Tab
     private Tab mTabToDay;
@@ -77,11 +92,25 @@ public class MyWorldView extends WorldBufferView {
 
 
     private void init() {
+        //背景与温度曲线变化的频率与文字图标不同,使用独立的图层
+        addBufferLayer(LAYER_BACKGROUND, -1, this::onDrawBackground);
+        addBufferLayer(LAYER_TEMPERATURE, 1, this::onDrawTemperature);
+        //数据不变时冷启动直接使用上一次绘制的内容
+        setBufferDiskCache(DiskTileCache.getDefault(getContext()));
     }
 
     public void setData(List<Tab> mData) {
         this.mData = mData;
 
+        //BitmapCache 不是线程安全的,图标在这里解码,绘制时不再访问
+        SparseArray<Bitmap> icons = new SparseArray<>();
+        if (mData != null) {
+            for (Tab tab : mData) {
+                icons.put(tab.getIco(), mBitmapCache.get(tab.getIco()));
+            }
+        }
+        mIcons = icons;
+
         //更新今日天气数据
         mTabToDay = getToDay();
         //刷新选中项
@@ -109,7 +138,7 @@ public class MyWorldView extends WorldBufferView {
         mTabSelected = tab;
         mTabSelectedIndex = tab.getIndex();
         smoothScrollTo(getTabScrollOffsetX(tab), 0);
-        ViewCompat.postInvalidateOnAnimation(this);
+        postInvalidateWorld();
         onTabChange(tab);
     }
 
@@ -140,92 +169,154 @@ public class MyWorldView extends WorldBufferView {
             }
 
             //位置信息配置
+            WorldGridIndex<Tab> index = new WorldGridIndex<>(mWidth_Tab);
             for (int i = 0; i < mData.size(); i++) {
                 Tab tab = mData.get(i);
                 tab.setSize(i, mWidth_Tab, world.getWorldHeight(), t_min, t_max);
+                index.put(tab, tab.mRect);
                 array.add(new PointF(tab.getCenterX(), tab.cy_temperature));
             }
+            mTabIndex = index;
             array.add(0, new PointF(0, mData.get(0).cy_temperature));
             array.add(new PointF(world.getWorldWidth(), mData.get(mData.size() - 1).cy_temperature));
 
-            mPathTem.reset();
-            mPathBackground.reset();
-            CanvasUtils.INSTANCE.getLineGraph(mPathTem, array);
-            CanvasUtils.INSTANCE.getLineGraph(mPathBackground, array);
-            mPathBackground.lineTo(world.getWorldWidth(), 0);
-            mPathBackground.lineTo(0, 0);
-            mPathBackground.close();
+            Path pathTem = new Path();
+            Path pathBackground = new Path();
+            CanvasUtils.INSTANCE.getLineGraph(pathTem, array);
+            CanvasUtils.INSTANCE.getLineGraph(pathBackground, array);
+            pathBackground.lineTo(world.getWorldWidth(), 0);
+            pathBackground.lineTo(0, 0);
+            pathBackground.close();
+            mPathTem = pathTem;
+            mPathBackground = pathBackground;
         } else {
+            mTabIndex = null;
             super.onMeasureWorldSize(world, width, height);
         }
     }
 
 
     @Override
-    protected void onDrawWorldBuffer(Canvas canvas) {
-        super.onDrawWorldBuffer(canvas);
+    protected String onCreateBufferCacheKey() {
         List<Tab> array = mData;
-        if (array == null || array.isEmpty()) return;
-        Tab toDay = mTabToDay;
-
-        //背景
-        canvas.save();
-        canvas.translate(0, mSize_TranslateBackground);
-        mPaint.setStyle(PS_BackgroundLight);
-        canvas.drawPath(mPathBackground, mPaint);
-        canvas.restore();
-
-        mPaint.setStyle(PS_Background);
-        canvas.drawPath(mPathBackground, mPaint);
-
+        if (array == null || array.isEmpty()) return null;
+        //标识相同时直接使用磁盘中的内容,需要使用摘要而不是hashCode,避免碰撞时显示其它数据的内容
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        //"今天"/"昨天"以及过去日期的透明度与当前日期有关
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        digest.update(TimeUtils.millis2String(TimeUtils.getNowMills(), new SimpleDateFormat("yyyy-MM-dd")).getBytes());
+        for (Tab tab : array) {
+            buffer.clear();
+            buffer.putLong(tab.time).putInt(tab.ico).putDouble(tab.temperature);
+            digest.update(buffer.array(), 0, buffer.position());
+        }
+        StringBuilder key = new StringBuilder().append(array.size()).append(':');
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
 
+    @Override
+    protected void onDrawWorldBuffer(Canvas canvas, RenderToken token) {
+        super.onDrawWorldBuffer(canvas, token);
+        WorldGridIndex<Tab> index = mTabIndex;
+        if (index == null) return;
+        Tab toDay = mTabToDay;
+        SparseArray<Bitmap> icons = mIcons;
+        //开启并行构建时多个区域会被同时绘制,画笔与临时对象只属于这一次绘制
+        XPaint paint = new XPaint();
+
+        //只绘制与需要构建的区域相交的Tab
+        Rect clipBounds = new Rect();
+        canvas.getClipBounds(clipBounds);
+        List<Tab> array = new ArrayList<>();
+        index.queryRect(clipBounds.left, clipBounds.top, clipBounds.right, clipBounds.bottom, array);
         for (int i = 0; i < array.size(); i++) {
+            if (token.isCancelled()) return;
             Tab tab = array.get(i);
             if (tab == null) continue;
             int alpha = 255;
             if (toDay != null) {
-                alpha = i < toDay.index ? (int) (255 * 0.48f) : 255;
+                alpha = tab.index < toDay.index ? (int) (255 * 0.48f) : 255;
             }
             //周
-            mPaint.setStyle(PS_Week);
-            mPaint.setAlpha(alpha);
-            CanvasUtils.INSTANCE.drawTextAtCenter(canvas, tab.getWeek(), tab.getCenterX(), tab.cy_week, mPaint);
+            paint.setStyle(PS_Week);
+            paint.setAlpha(alpha);
+            CanvasUtils.INSTANCE.drawTextAtCenter(canvas, tab.getWeek(), tab.getCenterX(), tab.cy_week, paint);
             //日期
-            mPaint.setStyle(PS_Date);
-            mPaint.setAlpha(alpha);
-            CanvasUtils.INSTANCE.drawTextAtCenter(canvas, tab.getDate(), tab.getCenterX(), tab.cy_date, mPaint);
+            paint.setStyle(PS_Date);
+            paint.setAlpha(alpha);
+            CanvasUtils.INSTANCE.drawTextAtCenter(canvas, tab.getDate(), tab.getCenterX(), tab.cy_date, paint);
             //图标
-            CanvasUtils.INSTANCE.drawBitmapAtCenter(canvas, mBitmapCache.get(tab.getIco()), tab.getCenterX(), tab.cy_ico, mPaint);
+            Bitmap ico = icons.get(tab.getIco());
+            if (ico != null) CanvasUtils.INSTANCE.drawBitmapAtCenter(canvas, ico, tab.getCenterX(), tab.cy_ico, paint);
         }
+    }
+
+    //背景图层
+    private void onDrawBackground(Canvas canvas, RenderToken token) {
+        List<Tab> array = mData;
+        if (array == null || array.isEmpty()) return;
+        XPaint paint = new XPaint();
+        Path path = mPathBackground;
+
+        canvas.save();
+        canvas.translate(0, mSize_TranslateBackground);
+        paint.setStyle(PS_BackgroundLight);
+        canvas.drawPath(path, paint);
+        canvas.restore();
+
+        paint.setStyle(PS_Background);
+        canvas.drawPath(path, paint);
+    }
+
+    //温度曲线图层
+    private void onDrawTemperature(Canvas canvas, RenderToken token) {
+        List<Tab> array = mData;
+        if (array == null || array.isEmpty()) return;
+        Tab toDay = mTabToDay;
+        XPaint paint = new XPaint();
+        Path path = mPathTem;
+        //缓冲构建线程中通过快照读取世界的大小
+        WorldSnapshot snapshot = getWorldSnapshot();
+        int worldWidth = snapshot.getWorldWidth(1f);
+        int worldHeight = snapshot.getWorldHeight(1f);
 
         //温度曲线
         canvas.save();
         if (toDay != null) {
-            canvas.clipRect(0f, 0f, toDay.getCenterX(), getHeight());
+            canvas.clipRect(0f, 0f, toDay.getCenterX(), worldHeight);
         }
-        mPaint.setStyle(PS_PathTemDotted);
-        canvas.drawPath(mPathTem, mPaint);
+        paint.setStyle(PS_PathTemDotted);
+        canvas.drawPath(path, paint);
         canvas.restore();
         canvas.save();
         if (toDay != null) {
-            canvas.clipRect(toDay.getCenterX(), 0, getWorldParams().getWorldWidth(), getHeight());
+            canvas.clipRect(toDay.getCenterX(), 0, worldWidth, worldHeight);
         }
-        mPaint.setStyle(PS_PathTem);
-        canvas.drawPath(mPathTem, mPaint);
+        paint.setStyle(PS_PathTem);
+        canvas.drawPath(path, paint);
         canvas.restore();
 
 
         //温度点
-        mPaint.setStyle(PS_P_1);
+        paint.setStyle(PS_P_1);
         for (int i = 0; i < array.size(); i++) {
+            if (token.isCancelled()) return;
             Tab tab = array.get(i);
-            canvas.drawCircle(tab.getCenterX(), tab.cy_temperature, ScreenUtils.dip2px(3), mPaint);
+            canvas.drawCircle(tab.getCenterX(), tab.cy_temperature, ScreenUtils.dip2px(3), paint);
         }
         if (toDay != null) {
-            mPaint.setStyle(PS_P_1);
-            canvas.drawCircle(toDay.getCenterX(), toDay.cy_temperature, ScreenUtils.dip2px(5), mPaint);
-            mPaint.setStyle(PS_P_2);
-            canvas.drawCircle(toDay.getCenterX(), toDay.cy_temperature, ScreenUtils.dip2px(3), mPaint);
+            paint.setStyle(PS_P_1);
+            canvas.drawCircle(toDay.getCenterX(), toDay.cy_temperature, ScreenUtils.dip2px(5), paint);
+            paint.setStyle(PS_P_2);
+            canvas.drawCircle(toDay.getCenterX(), toDay.cy_temperature, ScreenUtils.dip2px(3), paint);
         }
     }
 
@@ -259,7 +350,7 @@ public class MyWorldView extends WorldBufferView {
         } else {
             mTabPress = null;
         }
-        ViewCompat.postInvalidateOnAnimation(this);
+        postInvalidateWorld();
     }
 
     @Override
@@ -393,12 +484,9 @@ public class MyWorldView extends WorldBufferView {
     }
 
     public Tab getTabByPoint(float x, float y) {
-        if (mData == null) return null;
-        for (Tab tab : mData) {
-            if (tab.mRect.contains(x, y)) return tab;
-        }
-
-        return null;
+        WorldGridIndex<Tab> index = mTabIndex;
+        if (mData == null || index == null) return null;
+        return index.queryPoint(x, y);
     }
 
     public Tab getToDay() {